@@ -0,0 +1,217 @@
+import java.util.ArrayDeque;
+
+/**
+ * A LEDBAT-like congestion controller (https://tools.ietf.org/html/rfc6817)
+ *
+ * The HTTPRangeGetters report the round trip of every range request and the bytes they read.
+ * Every period (a quarter of a second) the RateLimiter asks for the next refill rate of the TokenBucket:
+ * - the base delay is the smallest round trip of the last minute, i.e. the link with empty queues
+ * - the queuing delay is how far the period's average round trip is above the base delay
+ * - while the queuing delay is under TARGET_DELAY the rate grows, above it the rate shrinks
+ * - like TCP, the rate doubles every period (slow start) while it's under the slow start threshold and
+ *   the queuing delay is under a quarter of the target, otherwise it grows gently
+ * - the threshold is set once the queuing delay is over a quarter of the target in SLOW_START_PERIODS
+ *   periods in a row, so the connections opening behind the first range, which fills the queues
+ *   for a period or two, don't end slow start. It's set to half the rate at which the queue went
+ *   over the target, so the rate doubles back up quickly after a cut without overshooting again
+ * - over the target, the rate is cut from the throughput the link delivered, since a rate far above
+ *   it would take many cuts to come down. After a cut it's held while the delay comes down
+ * - slow start begins at INITIAL_RATE, the rate never goes under MIN_RATE
+ * - a period without round trips goes by the previous period's, and the rate is held rather than
+ *   cut since the queue may have drained already. After that it keeps growing
+ *
+ * This lets a "background" download use spare capacity and back off when other traffic
+ * starts filling the queues on the link.
+ */
+class CongestionController {
+
+	// LEDBAT's recommended target for the queuing delay
+	private static final long TARGET_DELAY = 100_000_000L;
+	// fraction of the rate added per second at most once out of slow start
+	private static final double GAIN = 0.5;
+	private static final long MIN_RATE = 16 * 1024;
+	// a few chunks a period, low on any link but it saves the first slow start several doublings
+	private static final long INITIAL_RATE = 256 * 1024;
+	// the base delay is the smallest of the round trips reported in this window
+	private static final long BASE_WINDOW = 60_000_000_000L;
+	// the queues are near the target once the queuing delay is over a quarter of it
+	private static final double NEAR_TARGET = 0.75;
+	// periods in a row near the target which end the first slow start
+	private static final int SLOW_START_PERIODS = 3;
+
+	private static CongestionController instance;
+
+	// {time, smallest round trip} of each period in which a request finished, oldest first
+	private final ArrayDeque<long[]> baseDelays;
+	private long minDelay;
+	private long sumDelays;
+	private int numDelays;
+	// the rate doubles while it's under the threshold
+	private long slowStartThreshold;
+	private int periodsNearTarget;
+	// highest rate of the periods near the target in a row in which the queue went over it
+	private long overTargetRate;
+	// how far the previous period's round trips were from the target, 1.0 if it had none
+	private double lastOffTarget;
+	// average round trip of the last period over the target, MAX once the queues are under it again
+	private long overTargetDelay;
+	private long bytesRead;
+	private long lastThroughput;
+	private long lastTick;
+	private long rate;
+	private long maxRate;
+
+	private CongestionController() {
+		this.baseDelays = new ArrayDeque<long[]>();
+		this.minDelay = Long.MAX_VALUE;
+		this.sumDelays = 0;
+		this.numDelays = 0;
+		this.slowStartThreshold = Long.MAX_VALUE;
+		this.periodsNearTarget = 0;
+		this.overTargetRate = 0;
+		this.lastOffTarget = 1.0;
+		this.overTargetDelay = Long.MAX_VALUE;
+		this.bytesRead = 0;
+		this.lastThroughput = 0;
+		this.lastTick = System.nanoTime();
+		this.rate = INITIAL_RATE;
+		this.maxRate = Long.MAX_VALUE;
+	}
+
+	// singleton
+	synchronized static CongestionController getInstance() {
+		if(instance == null) {
+			instance = new CongestionController();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * sets the ceiling of the refill rate, null for no ceiling
+	 * @param maxBytesPerSecond
+	 */
+	synchronized void setMaxRate(Long maxBytesPerSecond) {
+		this.maxRate = (maxBytesPerSecond == null) ? Long.MAX_VALUE : maxBytesPerSecond;
+		this.rate = Math.min(this.rate, this.maxRate);
+	}
+
+	/**
+	 * report the time between sending a range request and receiving its response
+	 * @param nanos - round trip of the request
+	 */
+	synchronized void onRoundTrip(long nanos) {
+		this.minDelay = Math.min(this.minDelay, nanos);
+		this.sumDelays += nanos;
+		this.numDelays++;
+	}
+
+	/**
+	 * report bytes read from a connection
+	 * @param bytes
+	 */
+	synchronized void onRead(int bytes) {
+		this.bytesRead += bytes;
+	}
+
+	/**
+	 * Closes the current measurement period and computes the refill rate for the next one.
+	 * @return bytes per second the TokenBucket should hold
+	 */
+	synchronized long nextRate() {
+
+		long now = System.nanoTime();
+		double seconds = Math.max(now - this.lastTick, 1) / 1e9;
+		long throughput = (long)(this.bytesRead / seconds);
+		this.lastTick = now;
+		this.bytesRead = 0;
+
+		// a round trip only tells about the queues of its own period
+		long currentDelay = Long.MAX_VALUE;
+		if(this.numDelays > 0) {
+
+			// forget round trips older than the window, the newest one always stays
+			while(!this.baseDelays.isEmpty() && now - this.baseDelays.peekFirst()[0] > BASE_WINDOW) {
+				this.baseDelays.removeFirst();
+			}
+			this.baseDelays.addLast(new long[] {now, this.minDelay});
+
+			// the period's average round trip, its minimum would hide the queue
+			currentDelay = this.sumDelays / this.numDelays;
+			this.minDelay = Long.MAX_VALUE;
+			this.sumDelays = 0;
+			this.numDelays = 0;
+		}
+
+		// without a round trip, the previous period's round trips still tell roughly how full the queues are,
+		// but not whether a queue over the target drained yet, so they hold the rate at most
+		double offTarget = Math.max(this.lastOffTarget, 0.0);
+		if(currentDelay != Long.MAX_VALUE) {
+			long baseDelay = Long.MAX_VALUE;
+			for(long[] delay : this.baseDelays) {
+				baseDelay = Math.min(baseDelay, delay[1]);
+			}
+			long queuingDelay = currentDelay - baseDelay;
+			offTarget = (double)(TARGET_DELAY - queuingDelay) / TARGET_DELAY;
+		}
+
+		// the queues stayed near the target for a while: stop doubling at this rate,
+		// or at half the rate which took them over the target to double back up after the cut
+		if(currentDelay == Long.MAX_VALUE) {
+			// a period without round trips tells nothing new about the queues
+		} else if(offTarget < NEAR_TARGET) {
+			this.periodsNearTarget++;
+			if(offTarget < 0) {
+				this.overTargetRate = Math.max(this.overTargetRate, this.rate);
+			}
+		} else {
+			this.periodsNearTarget = 0;
+			this.overTargetRate = 0;
+		}
+		if(this.periodsNearTarget >= SLOW_START_PERIODS) {
+			this.slowStartThreshold = (this.overTargetRate > 0) ? this.overTargetRate / 2
+					: Math.min(this.slowStartThreshold, this.rate);
+		}
+
+		this.lastOffTarget = (currentDelay != Long.MAX_VALUE) ? offTarget : 1.0;
+		long lastOverTargetDelay = this.overTargetDelay;
+		if(currentDelay != Long.MAX_VALUE) {
+			this.overTargetDelay = (offTarget < 0) ? currentDelay : Long.MAX_VALUE;
+		}
+
+		long next;
+		if(offTarget < 0 && ((this.slowStartThreshold == Long.MAX_VALUE && this.periodsNearTarget < SLOW_START_PERIODS)
+				|| (lastOverTargetDelay != Long.MAX_VALUE && currentDelay < lastOverTargetDelay))) {
+
+			// the first periods over the target don't end the first slow start, and once the rate was cut
+			// the queues drain for a round trip or so: hold the rate while the delay comes down
+			next = this.rate;
+		} else if(offTarget < 0) {
+
+			// the link is full, so it delivered what it can: cut from that rather than from a rate
+			// which may be far above it, by no more than a quarter in one period.
+			// A period's refills don't all land in it, so it goes by the better of the last two periods
+			long delivered = Math.max(throughput, this.lastThroughput);
+			delivered = (delivered > 0) ? Math.min(this.rate, delivered) : this.rate;
+			next = delivered + (long)(Math.max(offTarget, -0.25) * delivered);
+		} else {
+
+			// double the rate under the threshold while the queues are nearly empty,
+			// without jumping past it, otherwise grow it gently
+			if(this.rate < this.slowStartThreshold && offTarget >= NEAR_TARGET) {
+				next = Math.min(this.rate + (long)(offTarget * this.rate), this.slowStartThreshold);
+			} else {
+				next = this.rate + (long)(GAIN * offTarget * this.rate * Math.min(seconds, 1.0));
+			}
+		}
+
+		// don't grow far beyond what the link actually delivered
+		next = Math.min(next, Math.max(2 * throughput, Math.max(this.rate, MIN_RATE)));
+		next = Math.max(next, MIN_RATE);
+		next = Math.min(next, this.maxRate);
+
+		this.lastThroughput = throughput;
+		this.rate = next;
+		return this.rate;
+	}
+}
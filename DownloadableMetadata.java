@@ -4,10 +4,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.ObjectStreamConstants;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.concurrent.ArrayBlockingQueue;
 
@@ -17,11 +20,15 @@ import java.util.concurrent.ArrayBlockingQueue;
  * The metadata (or at least which parts already downloaded to disk) is constantly stored safely in disk.
  * When constructing a new metadata object, we first check the disk to load existing metadata.
  *
+ * The file's size is not queried up front: the first range request is sent right away and its
+ * Content-Range tells us the size, then the rest of the file is split into ranges while it streams.
+ * A file that fits in the first range is downloaded in a single request and no metadata file is kept.
+ *
  * CHALLENGE: try to avoid metadata disk footprint of O(n) in the average case
  * HINT: avoid the obvious bitmap solution, and think about ranges...
  */
 class DownloadableMetadata {
-    private int 					content_length;
+    private long 					content_length;
     private String 					metadataFilename;
     private String 					filename;
     private String 					url;
@@ -29,54 +36,98 @@ class DownloadableMetadata {
     public ArrayBlockingQueue<Range> rangeQueue;
     
     
+	// files up to this size are downloaded in the first request
+	static final int FIRST_RANGE_SIZE = 1024 * 1024;
+	// ranges smaller than this are worth batching into multi-range requests
+	static final int SMALL_RANGE_SIZE = 256 * 1024;
 	private final int BYTE_CHUNK_SIZE = 4096;
 	private final int NUM_BYTE_CHUNK_RANGES = 100;
-    private final int numBytesPerRange;
-    private final int numRanges;
+    private long numBytesPerRange;
+    private int numRanges;
+    private boolean persistent;
   
 
-    DownloadableMetadata(String url) throws IOException {
+    DownloadableMetadata(String url) {
         this.url = url;
         this.filename = getName(url);
         this.metadataFilename = getMetadataName(filename);
         
-        // content_length is the expected filesize
-        this.content_length = getContentLength(url);
-        
-        this.numBytesPerRange = getBytesPerRange();
-        
-        this.numRanges = calcNumRanges();
+        // content_length is the expected filesize, known once the first range responds
+        // or the metadata file is loaded
+        this.content_length = -1;
         
         // ranges of filebytes
         this.rangeList = null;
         
-        // a queue of file parts to download
-        this.rangeQueue = new ArrayBlockingQueue<Range>(numRanges);
+        this.rangeQueue = null;
+        this.persistent = true;
+    }
+
+    /**
+     * The first range of the file to request, before its size is known
+     * @return range
+     */
+    static Range firstRange() {
+    	return new Range(0L, (long)FIRST_RANGE_SIZE - 1);
+    }
+
+    /**
+     * The last range of a file ends at the file's size, one past the file's last byte.
+     * @param range
+     * @param fileSize - size of the whole file
+     * @return the last byte of the range which is in the file
+     */
+    static long lastByte(Range range, long fileSize) {
+    	return Math.min(range.getEnd(), fileSize - 1);
+    }
+
+    /**
+     * @param range
+     * @param fileSize - size of the whole file
+     * @return the range, or a range ending at the file's size if the file ends inside it
+     */
+    static Range clip(Range range, long fileSize) {
+    	if(fileSize > range.getEnd()) {
+    		return range;
+    	}
+    	return new Range(range.getStart(), fileSize);
     }
 
     /**
-     * This method splits the file into numRanges ranges and puts them into an ArrayList<Range>
+     * This method splits the rest of the file after the first range into ranges
+     * and puts them all into an ArrayList<Range>
+     * @param first - the range already being downloaded
      * @return ranges
      */
-    private ArrayList<Range> initializeRanges() {
+    private ArrayList<Range> initializeRanges(Range first) {
 
-    	ArrayList<Range> ranges = new ArrayList<Range>(numRanges);
+    	ArrayList<Range> ranges = new ArrayList<Range>();
+    	ranges.add(first);
+    	
+    	long start = first.getEnd() + 1;
+    	
+    	// the first range already reaches the end of the file
+    	if(start >= this.content_length) {
+    		return ranges;
+    	}
+    	
+    	int restRanges = calcNumRanges(this.content_length - start);
     	Range range = null;
     	
     	// add the ranges into the array list
-    	for(int i = 0; i < numRanges; i++) {
+    	for(int i = 0; i < restRanges; i++) {
 			
 			// in the first chunksPerRange-1 ranges, in each line we write:
 			// Start_Long - End Long , which describes a single missing range
-			if(i != numRanges - 1) {
+			if(i != restRanges - 1) {
 				
-				range = new Range((long)i*(numBytesPerRange), (long)(i+1)*(numBytesPerRange) - 1);
+				range = new Range(start + (long)i*(numBytesPerRange), start + (long)(i+1)*(numBytesPerRange) - 1);
 				ranges.add(range);
 				
 			// the last range gets the rest of the file
 			} else {
 				
-				range = new Range((long)i*(numBytesPerRange), (long)this.content_length);
+				range = new Range(start + (long)i*(numBytesPerRange), (long)this.content_length);
 				ranges.add(range);
 
 			}
@@ -90,9 +141,9 @@ class DownloadableMetadata {
      * spread file out over 100 byte chunk ranges
      * @return
      */
-    private int getBytesPerRange() {
+    private long getBytesPerRange() {
     	
-    	int chunksPerRange = (this.content_length / BYTE_CHUNK_SIZE) / NUM_BYTE_CHUNK_RANGES;
+    	long chunksPerRange = (this.content_length / BYTE_CHUNK_SIZE) / NUM_BYTE_CHUNK_RANGES;
 
 		// download file too small, one chunk per range
     	if(chunksPerRange < 1) {
@@ -102,12 +153,12 @@ class DownloadableMetadata {
 		return chunksPerRange * BYTE_CHUNK_SIZE;
 	}
 
-	private int calcNumRanges() {
+	private int calcNumRanges(long length) {
     	// get the number of ranges for chunk sets of chunksPerRange chunks
-		if(numBytesPerRange > this.content_length) {
+		if(numBytesPerRange > length) {
 			return 1;
 		} else {
-    		return this.content_length / numBytesPerRange;
+    		return (int)(length / numBytesPerRange);
 		}
 	}
 
@@ -125,42 +176,6 @@ class DownloadableMetadata {
     }
 
     
-    /**
-     * Opens an HTTP connection and queries the connection for the content length
-     * of the file to be downloaded.
-     * @param url - the URL of the file to be downloaded
-     * @return length - int
-     * @throws IOException
-     */
-    private static int getContentLength(String url) throws IOException {
-    	 // open the HTTP connection using the URL
-    	
-    	URL url_url;
-		try {
-			url_url = new URL(url);
-		} catch (MalformedURLException e1) {
-			System.err.println("Please check the URL and try again.");
-			throw new IOException();
-		}
-    	
-		HttpURLConnection conn = (HttpURLConnection)url_url.openConnection();
-    	
-    	try {
-			conn.connect();
-		} catch (IOException e) {
-			System.err.println("Couldn't connect to the internet. Please check your connection.");
-			throw new IOException();
-		}
-    	
-    	// query the connection to find the file size
-    	int length = conn.getContentLength();
-    	
-    	conn.disconnect();
-    	
-    	return length;
-    	
-    }
-    
     String getFilename() {
    
     	return this.filename;
@@ -182,7 +197,7 @@ class DownloadableMetadata {
      * For size of the data file, see method getFileSize()
      * @return
      */
-    int getSize() {
+    long getSize() {
     	return this.content_length;
     }
     
@@ -196,6 +211,8 @@ class DownloadableMetadata {
     	// we write our rangeList to the metadata file
     	FileOutputStream fout = new FileOutputStream(filename);
     	ObjectOutputStream oos = new ObjectOutputStream(fout);
+    	oos.writeLong(content_length);
+    	oos.writeInt(numRanges);
     	oos.writeObject(rangeList);
     	
     	fout.close();
@@ -212,54 +229,255 @@ public boolean isEmptyRanges() {
 	public Range getMissingRange() {		
 		return this.rangeQueue.poll();
 	}
+	
+	/**
+	 * Takes the next missing range and, if it is small, up to maxRanges-1 other small missing ranges
+	 * so that they can all be fetched in a single multi-range request.
+	 * @param maxRanges - max number of ranges to take
+	 * @return ranges sorted by their start, empty if there are none left
+	 */
+	public synchronized ArrayList<Range> getMissingRanges(int maxRanges) {
+		
+		ArrayList<Range> ranges = new ArrayList<Range>();
+		Range range = this.rangeQueue.poll();
+		if(range == null) {
+			return ranges;
+		}
+		ranges.add(range);
+		
+		if(range.getLength() < SMALL_RANGE_SIZE) {
+			Iterator<Range> iter = this.rangeQueue.iterator();
+			while(ranges.size() < maxRanges && iter.hasNext()) {
+				Range next = iter.next();
+				if(next.getLength() < SMALL_RANGE_SIZE) {
+					ranges.add(next);
+					iter.remove();
+				}
+			}
+			ranges.sort(Comparator.comparing(Range::getStart));
+		}
+		
+		return ranges;
+	}
 
-	public int getNumRangesLeft() {
+	public synchronized int getNumRangesLeft() {
 		return this.rangeList.size();
 	}
 
-	public void removeFromRanges(Range range) {
+	public synchronized void removeFromRanges(Range range) {
 
 		this.rangeList.remove(range);
 		
 	}
+	
+	/**
+	 * Marks a range as downloaded and atomically updates the metadata file.
+	 * The range's data must already be on disk.
+	 * @param range - the downloaded range
+	 * @throws IOException if the metadata file couldn't be updated
+	 */
+	public synchronized void completeRange(Range range) throws IOException {
+		
+		// remove the range from the rangeList
+		removeFromRanges(range);
+		saveMissingRanges();
+	}
+	
+	/**
+	 * Marks part of the file as downloaded, cutting it out of the missing ranges it overlaps,
+	 * and atomically updates the metadata file. The part's data must already be on disk.
+	 * @param start - first byte of the part
+	 * @param end - last byte of the part
+	 * @throws IOException if the metadata file couldn't be updated
+	 */
+	public synchronized void completePart(long start, long end) throws IOException {
+		
+		ArrayList<Range> ranges = new ArrayList<Range>(this.rangeList.size() + 1);
+		for(Range range : this.rangeList) {
+			
+			long last = lastByte(range, this.content_length);
+			if(last < start || range.getStart() > end) {
+				ranges.add(range);
+				continue;
+			}
+			
+			// keep what's missing before and after the part
+			if(range.getStart() < start) {
+				ranges.add(new Range(range.getStart(), start - 1));
+			}
+			if(end < last) {
+				ranges.add(new Range(end + 1, range.getEnd()));
+			}
+		}
+		this.rangeList = ranges;
+		saveMissingRanges();
+	}
+	
+	/**
+	 * checks whether a part of the file is already on disk
+	 * @param start - first byte of the part
+	 * @param end - last byte of the part
+	 * @return true if no missing range overlaps the part
+	 */
+	public synchronized boolean isDownloaded(long start, long end) {
+		
+		for(Range range : this.rangeList) {
+			long last = lastByte(range, this.content_length);
+			if(last >= start && range.getStart() <= end) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void saveMissingRanges() throws IOException {
+		
+		// single request downloads have no metadata file to update
+		if(!this.persistent) {
+			return;
+		}
+		
+		// copy the rangeList into a temporary file
+		writeMissingRanges("temp." + this.metadataFilename);
+
+		// move the temp file to be the proper metadata file
+		// atomically
+		Path metadatafile = Paths.get(this.metadataFilename);
+		Path tempfile = Paths.get("temp." + this.metadataFilename);
+		Files.move(tempfile, metadatafile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	public synchronized int getPercentDone() {
+		// ranges split by completePart can outnumber the planned ranges
+		return Math.max(0, (int)(((double)this.numRanges - (double)this.rangeList.size())*100 / (double)this.numRanges));
+	}
+
+	/**
+	 * whether a metadata file from an earlier run exists
+	 * @return
+	 */
+	public boolean isResuming() {
+		return new File(this.metadataFilename).exists();
+	}
+	
+	/**
+	 * whether progress is kept in the metadata file, which is skipped for single request downloads
+	 * @return
+	 */
+	public boolean isPersistent() {
+		return this.persistent;
+	}
 
 	// we suppress the unchecked warning for this exercise since we are sure that
 	// the only object in our file is an ArrayList unless someone maliciously mishandled the file
 	@SuppressWarnings("unchecked")
 	public void openFile() throws IOException {
 		
-		File metadata = new File(this.metadataFilename);
-		if(metadata.exists()) {
-			
-			// load the metadata from the file into the object
-			FileInputStream fin = new FileInputStream(this.getMetadataFileName());
-			ObjectInputStream ois = new ObjectInputStream(fin);
-			try {
-				this.rangeList = (ArrayList<Range>)ois.readObject();
-			} catch (ClassNotFoundException e) {
-				System.err.println("Well, shit.");
-			}
-			
-			Iterator<Range> iter = this.rangeList.iterator();
-			
-			while(iter.hasNext()) {
-				this.rangeQueue.add(iter.next());
+		// load the metadata from the file into the object
+		FileInputStream fin = new FileInputStream(this.getMetadataFileName());
+		ObjectInputStream ois = new ObjectInputStream(fin);
+		
+		// metadata files written before the file's size was kept in them start with the range list
+		if(isOldFormat()) {
+			ois.close();
+			System.err.println("The metadata file " + this.metadataFilename + " was written by an older version"
+					+ " and can't be resumed. Please delete it and try again.");
+			throw new IOException();
+		}
+		
+		// files written before sizes over 2GB were supported keep the size as an int
+		this.content_length = hasIntSize() ? ois.readInt() : ois.readLong();
+		this.numRanges = ois.readInt();
+		try {
+			this.rangeList = (ArrayList<Range>)ois.readObject();
+		} catch (ClassNotFoundException e) {
+			System.err.println("Well, shit.");
+		}
+		
+		this.rangeQueue = new ArrayBlockingQueue<Range>(Math.max(this.rangeList.size(), 1));
+		Iterator<Range> iter = this.rangeList.iterator();
+		
+		while(iter.hasNext()) {
+			this.rangeQueue.add(iter.next());
+		}
+		
+		fin.close();
+		ois.close();
+	}
+	
+	/**
+	 * checks whether the metadata file starts with an object rather than the file's size
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isOldFormat() throws IOException {
+		
+		// the stream header is 4 bytes, then comes the type of the first item
+		return readHeader()[4] == ObjectStreamConstants.TC_OBJECT;
+	}
+	
+	/**
+	 * checks whether the metadata file keeps the file's size as an int rather than a long
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean hasIntSize() throws IOException {
+		
+		// the size and the number of ranges are a block of data, whose length follows its type
+		byte[] header = readHeader();
+		return header[4] == ObjectStreamConstants.TC_BLOCKDATA && header[5] == 2 * Integer.BYTES;
+	}
+	
+	/**
+	 * @return the stream header of the metadata file and the type and length of its first item
+	 * @throws IOException
+	 */
+	private byte[] readHeader() throws IOException {
+		
+		byte[] header = new byte[6];
+		FileInputStream fin = new FileInputStream(this.getMetadataFileName());
+		try {
+			int read = 0;
+			while(read < header.length) {
+				int dat = fin.read(header, read, header.length - read);
+				if(dat == -1) {
+					break;
+				}
+				read += dat;
 			}
-			
+			return header;
+		} finally {
 			fin.close();
-			ois.close();
-			
-		} else {
-			this.rangeList = initializeRanges();
+		}
+	}
+	
+	/**
+	 * Plans the ranges of a new download once the first range's response told us the file's size.
+	 * The first range is already being downloaded, so only the ones after it are queued.
+	 * @param content_length - size of the file
+	 * @param first - the range already being downloaded
+	 * @throws IOException if the metadata file couldn't be written
+	 */
+	public void openFile(long content_length, Range first) throws IOException {
+		
+		this.content_length = content_length;
+		this.numBytesPerRange = getBytesPerRange();
+		this.rangeList = initializeRanges(first);
+		this.numRanges = this.rangeList.size();
+		
+		// a single request download has nothing to resume
+		this.persistent = this.numRanges > 1;
+		if(this.persistent) {
 			writeMissingRanges(this.metadataFilename);
-			
-			Iterator<Range> iter = this.rangeList.iterator();
-			
-			while(iter.hasNext()) {
-				this.rangeQueue.add(iter.next());
-			}
 		}
 		
+		this.rangeQueue = new ArrayBlockingQueue<Range>(this.numRanges);
+		Iterator<Range> iter = this.rangeList.iterator();
+		iter.next();
+		
+		while(iter.hasNext()) {
+			this.rangeQueue.add(iter.next());
+		}
 	}
 
 	public int numRanges() {
@@ -1,9 +1,5 @@
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Semaphore;
@@ -35,9 +31,7 @@ public class FileWriter implements Callable<Void> {
     	
     	// setting up our variables for the writing loop
     	Chunk chunk;
-    	int percent = (int)(((double)downloadableMetadata.numRanges() - (double)downloadableMetadata.getNumRangesLeft())*100 
-    			/ (double)downloadableMetadata.numRanges());;
-    	System.err.println("Downloaded " + percent + "%");
+    	System.err.println("Downloaded " + downloadableMetadata.getPercentDone() + "%");
     	
     	// While metadata object indicates that I'm still downloading....
     	while(downloadableMetadata.getNumRangesLeft() != 0) {
@@ -49,18 +43,8 @@ public class FileWriter implements Callable<Void> {
     		data.write(chunk.getData(), 0, chunk.getSize_in_bytes());
     		// update the metadata file when we completed a range
     		if(chunk.getStamp()) {
-    			// remove the range from the rangeList
-    			downloadableMetadata.removeFromRanges(chunk.getRange());
-    			// copy the rangeList into a temporary file
-    			downloadableMetadata.writeMissingRanges("temp." + downloadableMetadata.getMetadataFileName());
-
-    			// move the temp file to be the proper metadata file
-    			// atomically
-    			Path metadatafile = Paths.get(downloadableMetadata.getMetadataFileName());
-    			Path tempfile = Paths.get("temp." + downloadableMetadata.getMetadataFileName());
-    			
     			try {
-					Files.move(tempfile, metadatafile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    				downloadableMetadata.completeRange(chunk.getRange());
 
 				} catch (IOException e) {
 					
@@ -68,8 +52,7 @@ public class FileWriter implements Callable<Void> {
 					System.exit(1);
 				}
     			
-    			percent = (int)(((double)downloadableMetadata.numRanges() - (double)downloadableMetadata.getNumRangesLeft())*100 / (double)downloadableMetadata.numRanges());
-    			System.err.println("Downloaded " + percent + "%");
+    			System.err.println("Downloaded " + downloadableMetadata.getPercentDone() + "%");
     		}	
     	}
     }
@@ -1,6 +1,7 @@
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
@@ -10,15 +11,20 @@ import java.util.concurrent.Semaphore;
  * A runnable class which downloads a given url.
  * It reads CHUNK_SIZE at a time and writes it into a BlockingQueue.
  * It supports downloading a range of data, and limiting the download rate using a token bucket.
+ *
+ * The request can be sent ahead with open(), which returns the size of the whole file
+ * so the first range of a download doubles as the query for the file's size.
  */
 public class HTTPRangeGetter implements Callable<Void> {
     static final int CHUNK_SIZE = 4096;
     private static final int CONNECT_TIMEOUT = 500;
     private static final int READ_TIMEOUT = 5000;
     private final String url;
-    private final Range range;
+    private Range range;
+    private HttpURLConnection conn;
     private final BlockingQueue<Chunk> outQueue;
     private TokenBucket tokenBucket;
+    private CongestionController congestionController;
     private Semaphore numChunks;
 
     HTTPRangeGetter(
@@ -30,16 +36,51 @@ public class HTTPRangeGetter implements Callable<Void> {
         this.range = range;
         this.outQueue = outQueue;
         this.tokenBucket = TokenBucket.getInstance();
+        this.congestionController = CongestionController.getInstance();
         this.numChunks = numChunks;
+        this.conn = null;
     }
 
-    private void downloadRange() throws IOException, InterruptedException {
+    /**
+     * Sends the request of the first range of a download, before the file's size is known.
+     * If the file ends inside our range, or the server ignored the range and sends the whole file,
+     * our range becomes what the server actually sends.
+     * @return the size of the whole file
+     * @throws IOException
+     */
+    long open() throws IOException {
+    	
+    	long fileSize = request();
+    	
+    	if(conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+    		// the server sends the whole file, so our range is the whole file
+    		this.range = new Range(0L, fileSize);
+    	} else {
+    		// the last range of a file ends at the file's size
+    		this.range = DownloadableMetadata.clip(this.range, fileSize);
+    	}
+    	
+    	return fileSize;
+    }
+
+    /**
+     * Sends the range request and checks the response.
+     * @return the size of the whole file
+     * @throws IOException
+     */
+    private long request() throws IOException {
         
     	// convert the string url to type URL for opening the connection
-    	URL url = new URL(this.url);
+    	URL url;
+    	try {
+			url = new URL(this.url);
+		} catch (MalformedURLException e) {
+			System.err.println("Please check the URL and try again.");
+			throw new IOException();
+		}
     	
     	// open the HTTP connection using the URL
-    	HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+    	conn = (HttpURLConnection)url.openConnection();
     	
     	// set the connect timeout
     	conn.setConnectTimeout(CONNECT_TIMEOUT);
@@ -51,10 +92,14 @@ public class HTTPRangeGetter implements Callable<Void> {
     	conn.setRequestProperty("Range", range);
     	
     	// complete the connection to the server
+    	long requestTime = System.nanoTime();
     	conn.connect();
     	
     	int responseCode = conn.getResponseCode();
     	
+    	// the request's round trip tells the congestion controller how full the link's queues are
+    	congestionController.onRoundTrip(System.nanoTime() - requestTime);
+    	
     	// make sure that the response code is valid
     	if(!(responseCode < 300 && responseCode > 199)) {
     		
@@ -64,6 +109,58 @@ public class HTTPRangeGetter implements Callable<Void> {
     		throw new IOException();
     	}
     	
+    	// a server that ignores the Range header sends the whole file from byte 0
+    	if(responseCode != HttpURLConnection.HTTP_PARTIAL && this.range.getStart() != 0) {
+    		System.err.println("Server doesn't support ranges, response code: " + responseCode);
+    		throw new IOException();
+    	}
+    	
+    	long fileSize;
+    	if(responseCode == HttpURLConnection.HTTP_PARTIAL) {
+    		fileSize = parseContentRange(conn.getHeaderField("Content-Range"))[2];
+    	} else {
+    		fileSize = conn.getContentLengthLong();
+    		if(fileSize < 0) {
+    			System.err.println("Couldn't get the file size from the server.");
+    			throw new IOException();
+    		}
+    	}
+    	
+    	return fileSize;
+    }
+
+    Range getRange() {
+    	return this.range;
+    }
+
+    /**
+     * parses the Content-Range header of a partial response
+     * @param contentRange - bytes start-end/size
+     * @return {start, end, size}
+     * @throws IOException if the header is missing or malformed
+     */
+    static long[] parseContentRange(String contentRange) throws IOException {
+    	try {
+    		int slash = contentRange.indexOf('/');
+    		String bounds = contentRange.substring(contentRange.indexOf(' ') + 1, slash);
+    		int dash = bounds.indexOf('-');
+    		return new long[] {
+    				Long.parseLong(bounds.substring(0, dash).trim()),
+    				Long.parseLong(bounds.substring(dash + 1).trim()),
+    				Long.parseLong(contentRange.substring(slash + 1).trim()) };
+    	} catch (NullPointerException | IndexOutOfBoundsException | NumberFormatException e) {
+    		System.err.println("Bad Content-Range from the server: " + contentRange);
+    		throw new IOException();
+    	}
+    }
+
+    private void downloadRange() throws IOException, InterruptedException {
+    	
+    	// the request may have been sent already by whoever needed the file size
+    	if(conn == null) {
+    		request();
+    	}
+    	
     	// start reading data from the input stream
     	BufferedInputStream in = null;
     	//RandomAccessFile buf = null;
@@ -73,9 +170,19 @@ public class HTTPRangeGetter implements Callable<Void> {
     	// put data from the inputstream to a byte array
     	byte data[] = new byte[CHUNK_SIZE];
     	
+    	// the number of bytes the server sends for our range, which is less than the range
+    	// for the last range of the file, and more than it if the server sends the whole file
+    	long remaining = conn.getContentLengthLong();
+    	if(remaining < 0) {
+    		System.err.println("Server didn't send a Content-Length");
+    		in.close();
+    		throw new IOException();
+    	}
+    	remaining = Math.min(remaining, this.range.getLength());
+    	
     	// in this range, we want to start reading bytes at index 0 and read until
     	// we have enough data for a Chunk, or we reach the end of a range
-    	int dat = in.read(data, 0, CHUNK_SIZE);
+    	int dat = in.read(data, 0, (int)Math.min(CHUNK_SIZE, remaining));
     	
     	// we will need to keep track of the offset for writing to the file
     	Long offset = this.range.getStart();
@@ -89,8 +196,9 @@ public class HTTPRangeGetter implements Callable<Void> {
     	while(dat != -1) {
     		stamp = false;
     		
-    		// if this chunk is the last, then offset+dat should be equal to the end of the range
-    		if((offset+dat) >= this.range.getEnd()) {
+    		// if this chunk is the last, then it holds the last of the bytes the server sends
+    		remaining -= dat;
+    		if(remaining == 0) {
     			stamp = true;
     		}
     		
@@ -99,19 +207,31 @@ public class HTTPRangeGetter implements Callable<Void> {
     		
     		// take 1 token for each byte read from the input stream
     		tokenBucket.take(dat);
+    		congestionController.onRead(dat);
     		
     		outQueue.put(chunk);
     		numChunks.release();
     		
+    		// don't read past our range if the server sends more than we asked for
+    		if(stamp) {
+    			break;
+    		}
+    		
     		// increase the offset for the next read
     		// note that offset is useful for the FileWriter
     		offset += dat;
-    		dat = in.read(data, 0, CHUNK_SIZE);
+    		dat = in.read(data, 0, (int)Math.min(CHUNK_SIZE, remaining));
     		
     	}
     	
     	// close the input stream
     	in.close();
+    	
+    	// the server closed the connection before the end of our range
+    	if(!stamp) {
+    		System.err.println("Connection closed before the end of the range");
+    		throw new IOException();
+    	}
     	// if we reach this code, it means that our HTTPRangeGetter has read & bundled
     	// all the data in our range (sent it to the Chunk Queue)
 
@@ -11,27 +11,48 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 
 public class IdcDm {
+    private static final int CHUNK_QUEUE_SIZE = 1024;
+    private static final int MAX_RANGES_PER_REQUEST = 32;
 
     /**
      * Enter download program.
      *
      * @param args command-line arguments:
 	 * URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]
+	 * MAX-DOWNLOAD-LIMIT may also be "background" or "background:<Bps>" to adapt the rate
+	 * to the link's congestion (optionally capped at Bps)
+	 * Run with -DIdcDm.engine=nio to download http:// URLs with the selector based engine
      * @throws Exception 
      */
     public static void main(String[] args) throws Exception {
         int numberOfWorkers = 1;
         Long maxBytesPerSecond = null;
+        boolean background = false;
 
         if (args.length < 1 || args.length > 3) {
-            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT|background[:MAX-DOWNLOAD-LIMIT]]\n");
             System.exit(1);
         } else if (args.length >= 2) {
             numberOfWorkers = Integer.parseInt(args[1]);
-            if (args.length == 3)
-                maxBytesPerSecond = Long.parseLong(args[2]);
+            if (args.length == 3) {
+                String limit = args[2];
+                try {
+                    if (limit.equals("background")) {
+                        background = true;
+                    } else if (limit.startsWith("background:")) {
+                        background = true;
+                        maxBytesPerSecond = Long.parseLong(limit.substring("background:".length()));
+                    } else {
+                        maxBytesPerSecond = Long.parseLong(limit);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.printf("MAX-DOWNLOAD-LIMIT must be a number of bytes per second, \"background\" or \"background:\" followed by a number\n");
+                    System.exit(1);
+                }
+            }
         }
 
         String url = args[0];
@@ -41,13 +62,20 @@ public class IdcDm {
             System.err.printf(" using %d connections", numberOfWorkers);
         if (maxBytesPerSecond != null)
             System.err.printf(" limited to %d Bps", maxBytesPerSecond);
+        if (background)
+            System.err.printf(" in background mode");
         System.err.printf("...\n");
 
-        DownloadURL(url, numberOfWorkers, maxBytesPerSecond);
+        if ("nio".equals(System.getProperty("IdcDm.engine")) && SelectorDownloader.supports(url))
+            DownloadURLSelector(url, numberOfWorkers, maxBytesPerSecond, background);
+        else
+            DownloadURL(url, numberOfWorkers, maxBytesPerSecond, background);
     }
 
     /**
-     * Initiate the file's metadata, and iterate over missing ranges. For each:
+     * Initiate the file's metadata. A new download sends its first range request right away
+     * and learns the file's size from the response, then plans the rest while it streams.
+     * Then iterate over missing ranges. For each:
      * 1. Hand a range to a getter thread and submit it to the dThreads for execution
      * 2. All along ensure that internet connection is good
      * 3. When download finishes, close all threads and begin shutdown
@@ -57,23 +85,40 @@ public class IdcDm {
      * @param url URL to download
      * @param numberOfWorkers number of concurrent connections
      * @param maxBytesPerSecond limit on download bytes-per-second
+     * @param background adapt the download rate to the link's congestion
      */
-    private static void DownloadURL(String url, int numberOfWorkers, Long maxBytesPerSecond) {
+    private static void DownloadURL(String url, int numberOfWorkers, Long maxBytesPerSecond, boolean background) {
     	
     	// download threads
 		ExecutorService dThreads = Executors.newFixedThreadPool(numberOfWorkers+1);
 		
     	//set up the RateLimiter
 		ExecutorService rLimiterThread = Executors.newSingleThreadExecutor(); 	
-    	rLimiterThread.submit(new RateLimiter(maxBytesPerSecond));
+    	rLimiterThread.submit(new RateLimiter(maxBytesPerSecond, background));
     	
     	//-----------------------------------------------//
     	
-    	// open the metadata file and get the content-length
-    	DownloadableMetadata metafile = null;
+    	// instantiate the Chunk Queue
+    	BlockingQueue<Chunk> outQueue = new ArrayBlockingQueue<Chunk>(CHUNK_QUEUE_SIZE);
+
+    	// fair semaphore with numberOfWorkers permits
+    	Semaphore numChunks = new Semaphore(0, true);
+    	
+    	// open the metadata file, or send the first range request to get the content-length
+    	DownloadableMetadata metafile = new DownloadableMetadata(url);
+    	Future<Void> first = null;
 		try {
-			metafile = new DownloadableMetadata(url);
-			metafile.openFile();
+			if(metafile.isResuming()) {
+				metafile.openFile();
+			} else {
+				HTTPRangeGetter firstGetter = new HTTPRangeGetter(url, DownloadableMetadata.firstRange(),
+						outQueue, numChunks);
+				long length = firstGetter.open();
+				
+				// plan the rest of the file while the first range streams
+				first = dThreads.submit(firstGetter);
+				metafile.openFile(length, firstGetter.getRange());
+			}
 			
 		} catch (IOException e) {
 			dThreads.shutdownNow();
@@ -82,14 +127,6 @@ public class IdcDm {
 			System.exit(1);
 		}
     	
-    	int length = metafile.getSize() / 4096;
-    	
-    	// instantiate the Chunk Queue
-    	BlockingQueue<Chunk> outQueue = new ArrayBlockingQueue<Chunk>(length);
-
-    	// fair semaphore with numberOfWorkers permits
-    	Semaphore numChunks = new Semaphore(0, true);
-    	
     	// write the data to a file  
     	// blocks until the chunkQueue starts getting chunks
     	Callable<Void> file = new FileWriter(metafile, outQueue, numChunks);
@@ -98,21 +135,29 @@ public class IdcDm {
     	while(!metafile.isEmptyRanges()) {
     		    		
     		Future<Void> res;
-    		Callable<Void> getter = new HTTPRangeGetter(url, metafile.getMissingRange(), 
-					outQueue, numChunks);
+    		Callable<Void> getter;
+    		
+    		// small ranges are fetched together in one multi-range request while the server supports it
+    		ArrayList<Range> ranges = metafile.getMissingRanges(
+    				MultiRangeGetter.isSupported() ? MAX_RANGES_PER_REQUEST : 1);
+    		if(ranges.size() == 1) {
+    			getter = new HTTPRangeGetter(url, ranges.get(0), outQueue, numChunks);
+    		} else {
+    			getter = new MultiRangeGetter(url, ranges, outQueue, numChunks);
+    		}
 			res = dThreads.submit(getter);
 			try {
 				res.get();
 			} catch (InterruptedException | ExecutionException e) {
-				dThreads.shutdownNow();
-				rLimiterThread.shutdownNow();
-				System.err.println("Lost internet connection. Please reconnect and try again.");
-				System.err.println("Download failed");
-				File temp = new File("temp." + metafile.getMetadataFileName());
-				if(temp.exists()) {
-					temp.delete();
-				}
-				System.exit(1);
+				failDownload(dThreads, rLimiterThread, metafile);
+			}
+    	}
+    	
+    	if(first != null) {
+    		try {
+				first.get();
+			} catch (InterruptedException | ExecutionException e) {
+				failDownload(dThreads, rLimiterThread, metafile);
 			}
     	}
     	
@@ -124,11 +169,47 @@ public class IdcDm {
 		}
     	rLimiterThread.shutdownNow();
     	
+    	finishDownload(metafile);
+    }
+
+    /**
+     * Same as DownloadURL, but all connections are driven by the SelectorDownloader's event loops
+     * and write straight to the data file, without getter threads or a FileWriter.
+     *
+     * @param url URL to download
+     * @param numberOfWorkers number of concurrent connections
+     * @param maxBytesPerSecond limit on download bytes-per-second
+     * @param background adapt the download rate to the link's congestion
+     */
+    private static void DownloadURLSelector(String url, int numberOfWorkers, Long maxBytesPerSecond, boolean background) {
+    	
+    	//set up the RateLimiter
+		ExecutorService rLimiterThread = Executors.newSingleThreadExecutor(); 	
+    	rLimiterThread.submit(new RateLimiter(maxBytesPerSecond, background));
+    	
+    	DownloadableMetadata metafile = new DownloadableMetadata(url);
+    	int numLoops = Runtime.getRuntime().availableProcessors();
+    	
+    	try {
+			new SelectorDownloader(metafile, numberOfWorkers, numLoops).download();
+		} catch (IOException | InterruptedException e) {
+			failDownload(null, rLimiterThread, metafile);
+		}
+    	
+    	rLimiterThread.shutdownNow();
+    	finishDownload(metafile);
+    }
+
+    /**
+     * Deletes the metadata files and exits.
+     */
+    private static void finishDownload(DownloadableMetadata metafile) {
+    	
     	Path metadata = Paths.get(metafile.getMetadataFileName());
     	File temp = new File("temp." + metafile.getMetadataFileName());
     	
     	try {
-			Files.delete(metadata);
+			Files.deleteIfExists(metadata);
 			temp.delete();
 			
 		} catch (IOException e) {
@@ -138,4 +219,23 @@ public class IdcDm {
     	System.err.println("Download succeeded");
     	System.exit(0);
     }
+
+    /**
+     * Stops all threads and exits, keeping the metadata file so the download can resume.
+     * @param dThreads - download threads, null if there are none
+     */
+    private static void failDownload(ExecutorService dThreads, ExecutorService rLimiterThread,
+    		DownloadableMetadata metafile) {
+		if(dThreads != null) {
+			dThreads.shutdownNow();
+		}
+		rLimiterThread.shutdownNow();
+		System.err.println("Lost internet connection. Please reconnect and try again.");
+		System.err.println("Download failed");
+		File temp = new File("temp." + metafile.getMetadataFileName());
+		if(temp.exists()) {
+			temp.delete();
+		}
+		System.exit(1);
+    }
 }
@@ -0,0 +1,290 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads several small ranges of a given url in a single multi-range request
+ * (Range: bytes=a-b,c-d,...), and parses the multipart/byteranges response into chunks
+ * for the FileWriter, stamping each chunk which completes one of the ranges.
+ *
+ * Ranges closer than MERGE_GAP are requested as one byte range, the bytes between them
+ * are read and dropped since that's cheaper than another part.
+ *
+ * If the server answers the whole file instead, the ranges are downloaded one by one
+ * with HTTPRangeGetters, and multi-range requests are turned off if we sent more than one range.
+ */
+public class MultiRangeGetter implements Callable<Void> {
+    static final int MERGE_GAP = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 500;
+    private static final int READ_TIMEOUT = 5000;
+    private static volatile boolean supported = true;
+    private final String url;
+    private final ArrayList<Range> ranges;
+    private final BlockingQueue<Chunk> outQueue;
+    private TokenBucket tokenBucket;
+    private CongestionController congestionController;
+    private Semaphore numChunks;
+    // number of byte ranges in our Range header, after merging
+    private int numSpecs;
+
+    /**
+     * @param ranges - the ranges to download, sorted by their start
+     */
+    MultiRangeGetter(
+            String url,
+            ArrayList<Range> ranges,
+            BlockingQueue<Chunk> outQueue,
+            Semaphore numChunks) {
+        this.url = url;
+        this.ranges = ranges;
+        this.outQueue = outQueue;
+        this.tokenBucket = TokenBucket.getInstance();
+        this.congestionController = CongestionController.getInstance();
+        this.numChunks = numChunks;
+    }
+
+    /**
+     * whether the server answered our multi-range requests so far
+     * @return
+     */
+    static boolean isSupported() {
+    	return supported;
+    }
+
+    private void downloadRanges() throws IOException, InterruptedException {
+
+    	// convert the string url to type URL for opening the connection
+    	URL url;
+    	try {
+			url = new URL(this.url);
+		} catch (MalformedURLException e) {
+			System.err.println("Please check the URL and try again.");
+			throw new IOException();
+		}
+
+    	HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+    	conn.setConnectTimeout(CONNECT_TIMEOUT);
+    	conn.setReadTimeout(READ_TIMEOUT);
+    	conn.setRequestProperty("Range", rangeHeader());
+
+    	long requestTime = System.nanoTime();
+    	conn.connect();
+
+    	int responseCode = conn.getResponseCode();
+
+    	// the request's round trip tells the congestion controller how full the link's queues are
+    	congestionController.onRoundTrip(System.nanoTime() - requestTime);
+
+    	// make sure that the response code is valid
+    	if(!(responseCode < 300 && responseCode > 199)) {
+    		System.err.println("Response Code Error: " + responseCode);
+    		throw new IOException();
+    	}
+
+    	// the server ignored our ranges and sends the whole file, fall back to one request per range
+    	if(responseCode != HttpURLConnection.HTTP_PARTIAL) {
+    		conn.disconnect();
+    		// a single merged range tells us nothing about the server's multi-range support
+    		if(this.numSpecs > 1) {
+    			supported = false;
+    		}
+    		for(Range range : this.ranges) {
+    			new HTTPRangeGetter(this.url, range, outQueue, numChunks).call();
+    		}
+    		return;
+    	}
+
+    	// bytes left to read of each range, unknown until the first part tells us the file's size
+    	long[] remaining = new long[this.ranges.size()];
+    	Arrays.fill(remaining, -1);
+    	BufferedInputStream in = new BufferedInputStream(conn.getInputStream());
+
+    	String contentType = conn.getContentType();
+    	if(contentType != null && contentType.startsWith("multipart/byteranges")) {
+
+    		String boundary = "--" + boundary(contentType);
+
+    		// each part is a boundary line, its headers, a blank line and the part's bytes
+    		String line = readLine(in);
+    		while(line != null && !line.equals(boundary + "--")) {
+    			if(line.equals(boundary)) {
+    				String contentRange = null;
+    				for(line = readLine(in); line != null && !line.isEmpty(); line = readLine(in)) {
+    					if(line.toLowerCase().startsWith("content-range:")) {
+    						contentRange = line.substring("content-range:".length()).trim();
+    					}
+    				}
+    				readPart(in, contentRange, remaining);
+    			}
+    			line = readLine(in);
+    		}
+    	} else {
+
+    		// the server may answer a single part, e.g. when it merged our ranges
+    		readPart(in, conn.getHeaderField("Content-Range"), remaining);
+    	}
+
+    	in.close();
+
+    	// the server closed the connection before the end of our ranges
+    	for(int i = 0; i < remaining.length; i++) {
+    		if(remaining[i] != 0) {
+        		System.err.println("Connection closed before the end of the range");
+        		throw new IOException();
+    		}
+    	}
+    }
+
+    /**
+     * builds the Range header, merging ranges with small gaps between them
+     * @return bytes=a-b,c-d,...
+     */
+    private String rangeHeader() {
+    	StringBuilder header = new StringBuilder("bytes=");
+    	this.numSpecs = 1;
+    	long start = this.ranges.get(0).getStart();
+    	long end = this.ranges.get(0).getEnd();
+
+    	for(int i = 1; i < this.ranges.size(); i++) {
+    		Range range = this.ranges.get(i);
+    		if(range.getStart() - end > MERGE_GAP) {
+    			header.append(start).append('-').append(end).append(',');
+    			this.numSpecs++;
+    			start = range.getStart();
+    		}
+    		end = Math.max(end, range.getEnd());
+    	}
+    	header.append(start).append('-').append(end);
+
+    	return header.toString();
+    }
+
+    /**
+     * @param contentType - multipart/byteranges; boundary=... with maybe more parameters after it
+     * @return the boundary without quotes
+     */
+    private static String boundary(String contentType) throws IOException {
+    	int index = contentType.indexOf("boundary=");
+    	if(index == -1) {
+    		System.err.println("No boundary in multi-range response: " + contentType);
+    		throw new IOException();
+    	}
+    	String boundary = contentType.substring(index + "boundary=".length());
+    	if(boundary.indexOf(';') != -1) {
+    		boundary = boundary.substring(0, boundary.indexOf(';'));
+    	}
+    	return boundary.trim().replace("\"", "");
+    }
+
+    /**
+     * Reads the bytes of one part and sends the ones inside our ranges to the chunkQueue.
+     * @param contentRange - bytes start-end/size
+     * @param remaining - bytes left to read of each range
+     */
+    private void readPart(InputStream in, String contentRange, long[] remaining)
+    		throws IOException, InterruptedException {
+
+    	long[] bounds = HTTPRangeGetter.parseContentRange(contentRange);
+    	long start = bounds[0];
+    	long end = bounds[1];
+    	long fileSize = bounds[2];
+
+    	initRemaining(remaining, fileSize);
+
+    	byte data[] = new byte[HTTPRangeGetter.CHUNK_SIZE];
+    	long offset = start;
+    	while(offset <= end) {
+
+    		// find the range this offset falls in, or the next one after it
+    		int i = 0;
+    		while(i < this.ranges.size() && DownloadableMetadata.lastByte(this.ranges.get(i), fileSize) < offset) {
+    			i++;
+    		}
+
+    		Range range = i < this.ranges.size() ? this.ranges.get(i) : null;
+    		boolean inRange = range != null && range.getStart() <= offset;
+
+    		// read up to the end of the range, or drop the bytes up to the start of the next one
+    		long until = inRange ? DownloadableMetadata.lastByte(range, fileSize) : (range != null ? range.getStart() - 1 : end);
+    		int dat = (int)Math.min(HTTPRangeGetter.CHUNK_SIZE, Math.min(end, until) - offset + 1);
+    		readFully(in, data, dat);
+
+    		// take 1 token for each byte read from the input stream
+    		tokenBucket.take(dat);
+    		congestionController.onRead(dat);
+
+    		if(inRange) {
+    			remaining[i] -= dat;
+
+    			Chunk chunk = new Chunk(data, offset, dat, range, remaining[i] == 0);
+    			outQueue.put(chunk);
+    			numChunks.release();
+    		}
+
+    		offset += dat;
+    	}
+    }
+
+    /**
+     * sets the bytes left of each range once the first part tells us the file's size
+     */
+    private void initRemaining(long[] remaining, long fileSize) {
+    	if(remaining[0] != -1) {
+    		return;
+    	}
+    	for(int i = 0; i < this.ranges.size(); i++) {
+    		remaining[i] = DownloadableMetadata.lastByte(this.ranges.get(i), fileSize) - this.ranges.get(i).getStart() + 1;
+    	}
+    }
+
+    private static void readFully(InputStream in, byte[] data, int length) throws IOException {
+    	int read = 0;
+    	while(read < length) {
+    		int dat = in.read(data, read, length - read);
+    		if(dat == -1) {
+    			System.err.println("Connection closed before the end of the range");
+    			throw new IOException();
+    		}
+    		read += dat;
+    	}
+    }
+
+    /**
+     * reads a line of a multipart body without its line break
+     * @return the line, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+    	StringBuilder line = new StringBuilder();
+    	int c = in.read();
+    	if(c == -1) {
+    		return null;
+    	}
+    	while(c != -1 && c != '\n') {
+    		if(c != '\r') {
+    			line.append((char)c);
+    		}
+    		c = in.read();
+    	}
+    	return line.toString();
+    }
+
+    @Override
+    public Void call() throws IOException {
+
+    	try {
+			this.downloadRanges();
+		} catch (InterruptedException e) {
+
+			// catch and do nothing, print in main
+		}
+    	return null;
+    }
+}
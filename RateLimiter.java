@@ -5,25 +5,67 @@ import java.util.concurrent.Callable;
  *
  * This class should implement a "soft" rate limiter by adding maxBytesPerSecond tokens to the bucket every second,
  * or a "hard" rate limiter by resetting the bucket to maxBytesPerSecond tokens every second.
+ *
+ * In background mode the rate is chosen by the CongestionController every BACKGROUND_PERIOD, with
+ * maxBytesPerSecond (if given) as its ceiling, and the bucket is reset to a slice of the period's tokens
+ * up to STEPS_PER_PERIOD times a period. The short period lets the rate ramp up quickly on an idle link,
+ * and the slices avoid sending the period's tokens as one burst which fills the link's queues.
  */
 public class RateLimiter implements Callable<Void> {
     private final TokenBucket tokenBucket;
-    private final Long maxBytesPerSecond;
+    private volatile long maxBytesPerSecond;
+    private final boolean background;
     private final long PER_SECOND = 1000;
+    private final long BACKGROUND_PERIOD = 250;
+    // a slice is at least the chunk the HTTPRangeGetters take at once, a smaller one would go to debt
+    private final long STEPS_PER_PERIOD = 3;
 
     RateLimiter(Long maxBytesPerSecond) {
+        this(maxBytesPerSecond, false);
+    }
+
+    RateLimiter(Long maxBytesPerSecond, boolean background) {
         this.tokenBucket = TokenBucket.getInstance();
 		this.maxBytesPerSecond = (maxBytesPerSecond == null) ? Long.MAX_VALUE : maxBytesPerSecond;
+		this.background = background;
+		if(background) {
+			CongestionController.getInstance().setMaxRate(maxBytesPerSecond);
+		}
 	}
 
+    /**
+     * changes the limit, and refills the bucket to the new limit right away
+     * @param maxBytesPerSecond - null for no limit
+     */
+    void setMaxBytesPerSecond(Long maxBytesPerSecond) {
+    	long limit = (maxBytesPerSecond == null) ? Long.MAX_VALUE : maxBytesPerSecond;
+    	if(!this.background && limit != this.maxBytesPerSecond) {
+    		this.tokenBucket.set(limit);
+    	}
+    	this.maxBytesPerSecond = limit;
+    	if(this.background) {
+    		CongestionController.getInstance().setMaxRate(maxBytesPerSecond);
+    	}
+    }
+
     public Void call() {
     	
     	// rate limiter resets the TokenBucket to maxBytesPerSecond every second
+    	// or to the congestion controller's rate in background mode
     	try {
     		while(!Thread.interrupted()) {
     			
-    			this.tokenBucket.set(this.maxBytesPerSecond);
-    			Thread.sleep(PER_SECOND);
+    			if(this.background) {
+    				long tokens = CongestionController.getInstance().nextRate() * BACKGROUND_PERIOD / PER_SECOND;
+    				long steps = Math.max(1, Math.min(STEPS_PER_PERIOD, tokens / HTTPRangeGetter.CHUNK_SIZE));
+    				for(long i = 0; i < steps; i++) {
+    					this.tokenBucket.set(tokens / steps);
+    					Thread.sleep(BACKGROUND_PERIOD / steps);
+    				}
+    			} else {
+    				this.tokenBucket.set(this.maxBytesPerSecond);
+    				Thread.sleep(PER_SECOND);
+    			}
     		}
     	} catch (InterruptedException e) {
     		// do nothing with the exception
@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A read-only SeekableByteChannel over a remote file, for reading only parts of it
+ * (a zip central directory, a Parquet footer, a few indexed records...).
+ *
+ * The file is read in blocks of BLOCK_SIZE, each fetched on demand with a HTTPRangeGetter.
+ * Fetched blocks are kept in a bounded LRU cache. When reads walk through the file block
+ * after block, the next READAHEAD_BLOCKS blocks are fetched in parallel ahead of the reader.
+ * Those are kept apart from the cache until they're read, so a small cache doesn't evict them
+ * before the reader gets to them, and are dropped once the reader moves away from them.
+ *
+ * The token bucket is shared by the whole process, so all open channels share one RateLimiter,
+ * which keeps to the lowest limit any of them was given.
+ *
+ * If persistent, fetched blocks are also written to the local file and recorded in its
+ * DownloadableMetadata, so they survive a restart and IdcDm can later resume the rest of the download.
+ */
+class RemoteFileChannel implements SeekableByteChannel {
+	static final int BLOCK_SIZE = 256 * 1024;
+	private static final int READAHEAD_BLOCKS = 4;
+	// consecutive blocks read before we start reading ahead
+	private static final int SEQUENTIAL_THRESHOLD = 2;
+
+	// limits of the open channels, null for no limit, and the limiter they share
+	private static final ArrayList<Long> limits = new ArrayList<Long>();
+	private static RateLimiter rLimiter;
+	private static ExecutorService rLimiterThread;
+
+	private final String url;
+	private final long size;
+	private final LinkedHashMap<Long, byte[]> cache;
+	// blocks read ahead which the reader didn't get to yet
+	private final HashMap<Long, byte[]> readahead;
+	private final HashMap<Long, Future<byte[]>> pending;
+	private final ExecutorService fetchThreads;
+	private final Long maxBytesPerSecond;
+	private final DownloadableMetadata metadata;
+	private final RandomAccessFile data;
+	private long position;
+	private long lastBlock;
+	private int sequential;
+	private volatile boolean open;
+
+	/**
+	 * @param url - the remote file
+	 * @param cacheBlocks - max number of blocks kept in memory
+	 * @param maxBytesPerSecond - limit on download bytes-per-second, null for no limit
+	 * @param persistent - keep fetched blocks in the local file
+	 * @throws IOException
+	 */
+	RemoteFileChannel(String url, final int cacheBlocks, Long maxBytesPerSecond, boolean persistent) throws IOException {
+		this.url = url;
+		this.cache = new LinkedHashMap<Long, byte[]>(cacheBlocks, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > cacheBlocks;
+			}
+		};
+		this.readahead = new HashMap<Long, byte[]>();
+		this.pending = new HashMap<Long, Future<byte[]>>();
+		this.position = 0;
+		this.lastBlock = -1;
+		this.sequential = 0;
+
+		// the range getters take their tokens from the bucket
+		this.maxBytesPerSecond = maxBytesPerSecond;
+		addLimit(maxBytesPerSecond);
+
+		// one thread more than the readahead so a read is never stuck behind it
+		this.fetchThreads = Executors.newFixedThreadPool(READAHEAD_BLOCKS + 1, RemoteFileChannel::daemon);
+
+		try {
+			if(persistent) {
+				this.metadata = new DownloadableMetadata(url);
+				if(this.metadata.isResuming()) {
+					this.metadata.openFile();
+					this.size = this.metadata.getSize();
+					this.data = new RandomAccessFile(this.metadata.getFilename(), "rwd");
+				} else {
+					this.size = openFirstBlock();
+					this.data = new RandomAccessFile(this.metadata.getFilename(), "rwd");
+					store(0, this.cache.get(0L));
+				}
+			} else {
+				this.metadata = null;
+				this.data = null;
+				this.size = openFirstBlock();
+			}
+		} catch (IOException e) {
+			this.fetchThreads.shutdownNow();
+			removeLimit(maxBytesPerSecond);
+			throw e;
+		}
+
+		this.open = true;
+	}
+
+	RemoteFileChannel(String url, int cacheBlocks) throws IOException {
+		this(url, cacheBlocks, null, false);
+	}
+
+	/**
+	 * daemon threads, so a channel that was never closed doesn't keep the JVM running
+	 */
+	private static Thread daemon(Runnable r) {
+		Thread thread = new Thread(r);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * registers an opened channel's limit, starting the shared limiter for the first channel
+	 * @param maxBytesPerSecond - null for no limit
+	 */
+	private static synchronized void addLimit(Long maxBytesPerSecond) {
+		limits.add(maxBytesPerSecond);
+		if(rLimiter == null) {
+			rLimiter = new RateLimiter(lowestLimit());
+			rLimiterThread = Executors.newSingleThreadExecutor(RemoteFileChannel::daemon);
+			rLimiterThread.submit(rLimiter);
+		} else {
+			rLimiter.setMaxBytesPerSecond(lowestLimit());
+		}
+	}
+
+	/**
+	 * forgets a closed channel's limit, stopping the shared limiter after the last channel
+	 * @param maxBytesPerSecond - the limit the channel was opened with
+	 */
+	private static synchronized void removeLimit(Long maxBytesPerSecond) {
+		limits.remove(maxBytesPerSecond);
+		if(limits.isEmpty()) {
+			rLimiterThread.shutdownNow();
+			rLimiter = null;
+			rLimiterThread = null;
+		} else {
+			rLimiter.setMaxBytesPerSecond(lowestLimit());
+		}
+	}
+
+	/**
+	 * @return the lowest limit of the open channels, null if none of them has one
+	 */
+	private static Long lowestLimit() {
+		Long lowest = null;
+		for(Long limit : limits) {
+			if(limit != null && (lowest == null || limit < lowest)) {
+				lowest = limit;
+			}
+		}
+		return lowest;
+	}
+
+	/**
+	 * Fetches the first block, whose response also tells us the file's size.
+	 * @return the size of the file
+	 * @throws IOException
+	 */
+	private long openFirstBlock() throws IOException {
+
+		BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+		HTTPRangeGetter getter = new HTTPRangeGetter(this.url, new Range(0L, (long)BLOCK_SIZE - 1),
+				chunks, new Semaphore(0));
+		long fileSize = getter.open();
+
+		// a server that ignores the Range header would send us the whole file
+		if(getter.getRange().getEnd() > BLOCK_SIZE - 1 && fileSize > BLOCK_SIZE) {
+			System.err.println("Server doesn't support ranges.");
+			throw new IOException();
+		}
+
+		if(this.metadata != null) {
+			this.metadata.openFile(fileSize, getter.getRange());
+		}
+
+		getter.call();
+		this.cache.put(0L, collect(chunks, 0, (int)Math.min(BLOCK_SIZE, fileSize)));
+		return fileSize;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		if(!this.open) {
+			throw new ClosedChannelException();
+		}
+		if(this.position >= this.size) {
+			return -1;
+		}
+
+		int read = 0;
+		while(dst.hasRemaining() && this.position < this.size) {
+			long index = this.position / BLOCK_SIZE;
+			byte[] block = getBlock(index);
+
+			int offset = (int)(this.position - index * BLOCK_SIZE);
+			int length = Math.min(dst.remaining(), block.length - offset);
+			dst.put(block, offset, length);
+
+			this.position += length;
+			read += length;
+		}
+
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() {
+		return this.position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) {
+		if(newPosition < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() {
+		return this.size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return this.open;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(!this.open) {
+			return;
+		}
+		this.open = false;
+		this.fetchThreads.shutdownNow();
+		removeLimit(this.maxBytesPerSecond);
+		if(this.data != null) {
+			this.data.close();
+		}
+	}
+
+	/**
+	 * Gets a block from the cache, or waits for it to be fetched.
+	 * Also starts reading ahead when the blocks are read one after the other.
+	 */
+	private byte[] getBlock(long index) throws IOException {
+
+		Future<byte[]> future;
+		synchronized(this.cache) {
+			if(index == this.lastBlock + 1) {
+				this.sequential++;
+			} else if(index != this.lastBlock) {
+				this.sequential = 0;
+			}
+			this.lastBlock = index;
+
+			// drop the blocks read ahead of an earlier position
+			this.readahead.keySet().removeIf(ahead -> ahead < index || ahead > index + READAHEAD_BLOCKS);
+
+			// a block read ahead moves to the cache once it's read
+			byte[] block = this.readahead.remove(index);
+			if(block != null) {
+				this.cache.put(index, block);
+			}
+
+			if(this.sequential >= SEQUENTIAL_THRESHOLD) {
+				for(long next = index + 1; next <= index + READAHEAD_BLOCKS; next++) {
+					fetchAsync(next, true);
+				}
+			}
+
+			block = this.cache.get(index);
+			if(block != null) {
+				return block;
+			}
+			future = fetchAsync(index, false);
+		}
+
+		try {
+			byte[] block = future.get();
+			synchronized(this.cache) {
+				this.readahead.remove(index);
+				this.cache.put(index, block);
+			}
+			return block;
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Starts fetching a block unless it's cached, already being fetched or past the end of the file.
+	 * Must hold the cache's lock.
+	 * @param ahead - the block is read ahead of the reader, keep it apart from the cache
+	 * @return the pending fetch, or null
+	 */
+	private Future<byte[]> fetchAsync(final long index, final boolean ahead) {
+		if(index * BLOCK_SIZE >= this.size || this.cache.containsKey(index) || this.readahead.containsKey(index)) {
+			return null;
+		}
+
+		Future<byte[]> future = this.pending.get(index);
+		if(future == null) {
+			future = this.fetchThreads.submit(() -> {
+				try {
+					byte[] block = load(index);
+					synchronized(this.cache) {
+						(ahead ? this.readahead : this.cache).put(index, block);
+					}
+					return block;
+				} finally {
+					synchronized(this.cache) {
+						this.pending.remove(index);
+					}
+				}
+			});
+			this.pending.put(index, future);
+		}
+		return future;
+	}
+
+	/**
+	 * Reads a block from the local file if it was downloaded before, otherwise from the server.
+	 */
+	private byte[] load(long index) throws IOException {
+		long start = index * BLOCK_SIZE;
+		int length = (int)Math.min(BLOCK_SIZE, this.size - start);
+
+		if(this.metadata != null && this.metadata.isDownloaded(start, start + length - 1)) {
+			byte[] block = new byte[length];
+			ByteBuffer buffer = ByteBuffer.wrap(block);
+			while(buffer.hasRemaining()) {
+				if(this.data.getChannel().read(buffer, start + buffer.position()) == -1) {
+					System.err.println("Data file is shorter than its metadata says.");
+					throw new IOException();
+				}
+			}
+			return block;
+		}
+
+		BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+		HTTPRangeGetter getter = new HTTPRangeGetter(this.url, new Range(start, start + length - 1),
+				chunks, new Semaphore(0));
+		getter.call();
+
+		// closing the channel interrupts the fetches, there's nobody left to tell about the missing bytes
+		if(!this.open) {
+			throw new ClosedChannelException();
+		}
+		byte[] block = collect(chunks, start, length);
+
+		if(this.metadata != null) {
+			store(start, block);
+		}
+		return block;
+	}
+
+	/**
+	 * writes a fetched block to the local file, then records it in the metadata
+	 */
+	private void store(long start, byte[] block) throws IOException {
+		this.data.getChannel().write(ByteBuffer.wrap(block), start);
+		this.metadata.completePart(start, start + block.length - 1);
+	}
+
+	/**
+	 * puts the chunks read by a HTTPRangeGetter together into a block
+	 */
+	private static byte[] collect(BlockingQueue<Chunk> chunks, long start, int length) throws IOException {
+		byte[] block = new byte[length];
+		int collected = 0;
+		for(Chunk chunk : chunks) {
+			System.arraycopy(chunk.getData(), 0, block, (int)(chunk.getOffset() - start), chunk.getSize_in_bytes());
+			collected += chunk.getSize_in_bytes();
+		}
+
+		// the getter was interrupted before the end of the block
+		if(collected != length) {
+			System.err.println("Couldn't read the whole block.");
+			throw new IOException();
+		}
+		return block;
+	}
+}
@@ -0,0 +1,600 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An alternative transfer engine built on non-blocking SocketChannels and Selectors.
+ *
+ * A few event loop threads drive all the connections, speaking plain HTTP/1.1 with Range
+ * and reusing each connection for the next missing range when the server keeps it alive.
+ * Body bytes are read into a direct buffer per connection and written straight to the
+ * data file at their offset, so they never go through the heap, Chunks or the FileWriter.
+ *
+ * Like the FileWriter, a range is marked as downloaded in the metadata only after its data
+ * was forced to the storage device. That's done by a separate Completer thread, so the event
+ * loops keep moving data meanwhile, and ranges finished together share a single force.
+ *
+ * Only http:// URLs are supported. A new download sends its first range right away and
+ * plans the rest of the ranges from the response's Content-Range (see DownloadableMetadata).
+ */
+class SelectorDownloader {
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final int HEADER_LIMIT = 16 * 1024;
+	// the header is read in pieces of this size, so few body bytes come with it before we ask for tokens
+	private static final int HEADER_READ = 1024;
+	private static final long SELECT_TIMEOUT = 100;
+	private static final long CONNECT_TIMEOUT = 500;
+	private static final long READ_TIMEOUT = 5000;
+	// tells the Completer that no more ranges will be finished
+	private static final Range DONE = new Range(-1L, -1L);
+
+	private final DownloadableMetadata metadata;
+	private final int numConnections;
+	private final int numLoops;
+	private final TokenBucket tokenBucket;
+	private final CongestionController congestionController;
+	private final CountDownLatch planned;
+	private final LinkedBlockingQueue<Range> completed;
+	private Future<Void> completion;
+	private InetSocketAddress address;
+	private String host;
+	private String path;
+	private FileChannel data;
+
+	SelectorDownloader(DownloadableMetadata metadata, int numConnections, int numLoops) {
+		this.metadata = metadata;
+		this.numConnections = numConnections;
+		this.numLoops = Math.max(1, Math.min(numLoops, numConnections));
+		this.tokenBucket = TokenBucket.getInstance();
+		this.congestionController = CongestionController.getInstance();
+		this.planned = new CountDownLatch(1);
+		this.completed = new LinkedBlockingQueue<Range>();
+	}
+
+	/**
+	 * checks whether this engine can download the url
+	 * @param url
+	 * @return true for http:// urls
+	 */
+	static boolean supports(String url) {
+		return url.startsWith("http://");
+	}
+
+	/**
+	 * Downloads all the missing ranges, blocks until done.
+	 * @throws IOException if any connection failed, the metadata keeps what is left to download
+	 * @throws InterruptedException
+	 */
+	void download() throws IOException, InterruptedException {
+
+		URL url;
+		try {
+			url = new URL(this.metadata.getUrl());
+		} catch (MalformedURLException e) {
+			System.err.println("Please check the URL and try again.");
+			throw new IOException();
+		}
+
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		this.address = new InetSocketAddress(InetAddress.getByName(url.getHost()), port);
+		this.host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + port;
+		this.path = url.getFile().isEmpty() ? "/" : url.getFile();
+
+		Range first = null;
+		if(this.metadata.isResuming()) {
+			this.metadata.openFile();
+			this.planned.countDown();
+		} else {
+			first = DownloadableMetadata.firstRange();
+		}
+
+		this.data = FileChannel.open(Paths.get(this.metadata.getFilename()),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+		ExecutorService completerThread = Executors.newSingleThreadExecutor();
+		this.completion = completerThread.submit(new Completer());
+
+		ExecutorService loopThreads = Executors.newFixedThreadPool(this.numLoops);
+		CompletionService<Void> loops = new ExecutorCompletionService<Void>(loopThreads);
+		try {
+			for(int i = 0; i < this.numLoops; i++) {
+
+				// spread the connections evenly over the loops
+				int share = this.numConnections / this.numLoops + (i < this.numConnections % this.numLoops ? 1 : 0);
+				loops.submit(new EventLoop(share, i == 0 ? first : null));
+			}
+
+			// stop everything as soon as one loop fails
+			for(int i = 0; i < this.numLoops; i++) {
+				try {
+					loops.take().get();
+				} catch (ExecutionException e) {
+					if(e.getCause() instanceof IOException) {
+						throw (IOException)e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			loopThreads.shutdownNow();
+			loopThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+			// record the ranges finished so far, even if a loop failed
+			this.completed.add(DONE);
+			completerThread.shutdown();
+			try {
+				this.completion.get();
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new IOException(e.getCause());
+			} finally {
+				this.data.close();
+			}
+		}
+	}
+
+	/**
+	 * Marks the ranges finished by the event loops as downloaded, forcing their data to the
+	 * storage device first. Runs until it takes DONE from the queue.
+	 */
+	private class Completer implements Callable<Void> {
+
+		@Override
+		public Void call() throws IOException, InterruptedException {
+			ArrayList<Range> ranges = new ArrayList<Range>();
+			boolean done = false;
+			while(!done) {
+				ranges.add(completed.take());
+				completed.drainTo(ranges);
+				done = ranges.remove(DONE);
+				if(ranges.isEmpty()) {
+					continue;
+				}
+
+				// the data must be on disk before the metadata says so
+				data.force(false);
+				for(Range range : ranges) {
+					metadata.completeRange(range);
+				}
+				System.err.println("Downloaded " + metadata.getPercentDone() + "%");
+				ranges.clear();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The state of a single HTTP connection and the range it is downloading
+	 */
+	private static class Connection {
+		SocketChannel channel;
+		Range range;
+		boolean first;
+		boolean keepAlive;
+		// the connection already served a range, the server may close it while idle
+		boolean reused;
+		long throttledUntil;
+		ByteBuffer request;
+		final ByteBuffer header;
+		final ByteBuffer body;
+		long position;
+		long remaining;
+		long requestTime;
+		long lastActivity;
+
+		Connection() {
+			this.header = ByteBuffer.allocateDirect(HEADER_LIMIT);
+			this.body = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * A thread with its own Selector which drives a share of the connections
+	 * until there are no more ranges to download.
+	 */
+	private class EventLoop implements Callable<Void> {
+		private final int share;
+		private final Range first;
+		private final ArrayList<SelectionKey> throttled;
+		private Selector selector;
+
+		EventLoop(int share, Range first) {
+			this.share = share;
+			this.first = first;
+			this.throttled = new ArrayList<SelectionKey>();
+		}
+
+		@Override
+		public Void call() throws IOException, InterruptedException {
+
+			this.selector = Selector.open();
+			try {
+				if(this.first != null) {
+					// the first range tells us the file's size, the rest of our share
+					// is opened once the ranges are planned
+					Connection conn = new Connection();
+					conn.first = true;
+					connect(conn, this.first);
+				} else {
+					planned.await();
+					openConnections(this.share);
+				}
+
+				while(!this.selector.keys().isEmpty()) {
+
+					this.selector.select(SELECT_TIMEOUT);
+
+					Iterator<SelectionKey> iter = this.selector.selectedKeys().iterator();
+					while(iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						handle(key);
+					}
+
+					tick();
+				}
+			} finally {
+				for(SelectionKey key : this.selector.keys()) {
+					key.channel().close();
+				}
+				this.selector.close();
+			}
+
+			return null;
+		}
+
+		private void openConnections(int count) throws IOException {
+			for(int i = 0; i < count; i++) {
+				Range range = metadata.getMissingRange();
+				if(range == null) {
+					return;
+				}
+				connect(new Connection(), range);
+			}
+		}
+
+		private void connect(Connection conn, Range range) throws IOException {
+			conn.channel = SocketChannel.open();
+			conn.channel.configureBlocking(false);
+			conn.keepAlive = true;
+			conn.reused = false;
+			conn.lastActivity = System.nanoTime();
+
+			prepareRequest(conn, range);
+
+			if(conn.channel.connect(address)) {
+				conn.channel.register(this.selector, SelectionKey.OP_WRITE, conn);
+			} else {
+				conn.channel.register(this.selector, SelectionKey.OP_CONNECT, conn);
+			}
+		}
+
+		private void prepareRequest(Connection conn, Range range) {
+			conn.range = range;
+			conn.position = range.getStart();
+			conn.remaining = -1;
+			conn.header.clear();
+
+			String request = "GET " + path + " HTTP/1.1\r\n"
+					+ "Host: " + host + "\r\n"
+					+ "Range: bytes=" + range.getStart() + "-" + range.getEnd() + "\r\n"
+					+ "Connection: keep-alive\r\n"
+					+ "\r\n";
+			conn.request = ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		private void handle(SelectionKey key) throws IOException {
+			Connection conn = (Connection)key.attachment();
+
+			if(key.isConnectable()) {
+				conn.channel.finishConnect();
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if(key.isWritable()) {
+				try {
+					conn.channel.write(conn.request);
+				} catch (IOException e) {
+					if(!isStale(conn)) {
+						throw e;
+					}
+					reconnect(key, conn);
+					return;
+				}
+				if(!conn.request.hasRemaining()) {
+					conn.requestTime = System.nanoTime();
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if(key.isReadable()) {
+				if(conn.remaining < 0) {
+					readHeader(key, conn);
+				} else {
+					readBody(key, conn);
+				}
+			}
+
+			conn.lastActivity = System.nanoTime();
+		}
+
+		private void readHeader(SelectionKey key, Connection conn) throws IOException {
+
+			int read;
+			try {
+				conn.header.limit(Math.min(conn.header.position() + HEADER_READ, conn.header.capacity()));
+				read = conn.channel.read(conn.header);
+			} catch (IOException e) {
+				if(!isStale(conn)) {
+					throw e;
+				}
+				read = -1;
+			}
+			if(read == -1) {
+				if(isStale(conn)) {
+					reconnect(key, conn);
+					return;
+				}
+				System.err.println("Connection closed before the end of the range");
+				throw new IOException();
+			}
+
+			int end = headerEnd(conn.header);
+			if(end == -1) {
+				if(conn.header.position() == conn.header.capacity()) {
+					System.err.println("Response header too large");
+					throw new IOException();
+				}
+				return;
+			}
+
+			// the request's round trip tells the congestion controller how full the link's queues are
+			congestionController.onRoundTrip(System.nanoTime() - conn.requestTime);
+
+			byte[] bytes = new byte[end];
+			ByteBuffer headerBytes = conn.header.duplicate();
+			headerBytes.flip();
+			headerBytes.get(bytes);
+			parseResponse(conn, new String(bytes, StandardCharsets.ISO_8859_1));
+
+			// whatever came after the header is the start of the body
+			ByteBuffer body = conn.header.duplicate();
+			body.flip();
+			body.position(end);
+			body.limit((int)Math.min(body.limit(), end + conn.remaining));
+			int length = body.remaining();
+			while(body.hasRemaining()) {
+				conn.position += data.write(body, conn.position);
+			}
+			conn.remaining -= length;
+
+			// these bytes were read with the header, before asking for tokens
+			tokenBucket.charge(length);
+			congestionController.onRead(length);
+
+			if(conn.remaining == 0) {
+				completeRange(key, conn);
+			}
+		}
+
+		private void readBody(SelectionKey key, Connection conn) throws IOException {
+
+			long want = Math.min(conn.remaining, conn.body.capacity());
+			long tokens = tokenBucket.tryTake(want);
+
+			// wait for the rate limiter to refill the bucket
+			if(tokens == 0) {
+				key.interestOps(0);
+				conn.throttledUntil = System.nanoTime() + SELECT_TIMEOUT * 1_000_000;
+				this.throttled.add(key);
+				return;
+			}
+
+			conn.body.clear();
+			conn.body.limit((int)tokens);
+			int read = conn.channel.read(conn.body);
+			if(read < tokens) {
+				tokenBucket.add(tokens - Math.max(read, 0));
+			}
+			if(read == -1) {
+				System.err.println("Connection closed before the end of the range");
+				throw new IOException();
+			}
+
+			conn.body.flip();
+			while(conn.body.hasRemaining()) {
+				conn.position += data.write(conn.body, conn.position);
+			}
+			conn.remaining -= read;
+			congestionController.onRead(read);
+
+			if(conn.remaining == 0) {
+				completeRange(key, conn);
+			}
+		}
+
+		private void parseResponse(Connection conn, String response) throws IOException {
+
+			String[] lines = response.split("\r\n");
+			String[] status = lines[0].split(" ");
+			if(status.length < 2) {
+				System.err.println("Bad response: " + lines[0]);
+				throw new IOException();
+			}
+			int responseCode = Integer.parseInt(status[1]);
+
+			HashMap<String, String> headers = new HashMap<String, String>();
+			for(int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if(colon > 0) {
+					headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+				}
+			}
+
+			// make sure that the response code is valid
+			if(!(responseCode < 300 && responseCode > 199)) {
+				System.err.println("Response Code Error: " + responseCode);
+				throw new IOException();
+			}
+
+			// a server that ignores the Range header sends the whole file from byte 0
+			if(responseCode != 206 && !conn.first) {
+				System.err.println("Server doesn't support ranges, response code: " + responseCode);
+				throw new IOException();
+			}
+
+			String contentLength = headers.get("content-length");
+			if(contentLength == null || headers.containsKey("transfer-encoding")) {
+				System.err.println("Server didn't send a Content-Length");
+				throw new IOException();
+			}
+			conn.remaining = Long.parseLong(contentLength);
+
+			String connection = headers.get("connection");
+			conn.keepAlive = status[0].equals("HTTP/1.1")
+					? !"close".equalsIgnoreCase(connection)
+					: "keep-alive".equalsIgnoreCase(connection);
+
+			if(conn.first) {
+				planFirstResponse(conn, responseCode, headers.get("content-range"));
+			}
+		}
+
+		/**
+		 * Plans the rest of the ranges from the first range's response, then opens
+		 * the rest of this loop's connections and lets the other loops start.
+		 */
+		private void planFirstResponse(Connection conn, int responseCode, String contentRange) throws IOException {
+
+			long fileSize;
+			if(responseCode == 206) {
+
+				fileSize = HTTPRangeGetter.parseContentRange(contentRange)[2];
+
+				// the last range of a file ends at the file's size
+				conn.range = DownloadableMetadata.clip(conn.range, fileSize);
+			} else {
+
+				// the server sends the whole file, so our range is the whole file
+				fileSize = conn.remaining;
+				conn.range = new Range(0L, fileSize);
+			}
+
+			conn.first = false;
+			metadata.openFile(fileSize, conn.range);
+			planned.countDown();
+			openConnections(this.share - 1);
+		}
+
+		/**
+		 * a kept alive connection which the server closed before answering our request,
+		 * e.g. because it was idle for too long
+		 */
+		private boolean isStale(Connection conn) {
+			return conn.reused && conn.header.position() == 0;
+		}
+
+		/**
+		 * sends the connection's request again over a new connection
+		 */
+		private void reconnect(SelectionKey key, Connection conn) throws IOException {
+			key.cancel();
+			conn.channel.close();
+			connect(conn, conn.range);
+		}
+
+		private void completeRange(SelectionKey key, Connection conn) throws IOException {
+
+			// the Completer marks the range as downloaded once its data is on disk
+			completed.add(conn.range);
+
+			Range next = metadata.getMissingRange();
+			if(next == null) {
+				key.cancel();
+				conn.channel.close();
+			} else if(conn.keepAlive) {
+				prepareRequest(conn, next);
+				conn.reused = true;
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				key.cancel();
+				conn.channel.close();
+				connect(conn, next);
+			}
+		}
+
+		/**
+		 * lets throttled connections read again and fails connections that stopped responding
+		 */
+		private void tick() throws IOException {
+			long now = System.nanoTime();
+
+			// the Completer only stops early if it failed
+			if(completion.isDone()) {
+				System.err.println("Couldn't update the metadata file");
+				throw new IOException();
+			}
+
+			Iterator<SelectionKey> iter = this.throttled.iterator();
+			while(iter.hasNext()) {
+				SelectionKey key = iter.next();
+				Connection conn = (Connection)key.attachment();
+				if(!key.isValid()) {
+					iter.remove();
+				} else if(now - conn.throttledUntil >= 0) {
+					iter.remove();
+					conn.throttledUntil = 0;
+					conn.lastActivity = now;
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+
+			for(SelectionKey key : this.selector.keys()) {
+				Connection conn = (Connection)key.attachment();
+				if(!key.isValid() || conn.throttledUntil != 0) {
+					continue;
+				}
+				long timeout = key.interestOps() == SelectionKey.OP_CONNECT ? CONNECT_TIMEOUT : READ_TIMEOUT;
+				if(now - conn.lastActivity > timeout * 1_000_000) {
+					System.err.println("Connection timed out");
+					throw new IOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * finds the end of the HTTP header in the bytes read so far
+	 * @return index just past the blank line, or -1 if the header isn't complete yet
+	 */
+	private static int headerEnd(ByteBuffer header) {
+		for(int i = 3; i < header.position(); i++) {
+			if(header.get(i - 3) == '\r' && header.get(i - 2) == '\n'
+					&& header.get(i - 1) == '\r' && header.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,521 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline scenarios that run IdcDm against a SimulatedServer and check the result.
+ *
+ * Every scenario starts a server on a free localhost port, runs IdcDm in its own JVM
+ * inside a temporary directory (IdcDm exits the JVM when it's done), reruns it after
+ * failures the way a user would, and checks that the downloaded file is byte for byte
+ * the server's content. Throughput scenarios also check the download met a rate target,
+ * kill scenarios kill IdcDm at a seeded point of the download and check it resumes, and
+ * the background scenario checks that background mode keeps a bottleneck's queue short.
+ * The remote file scenario reads the file through RemoteFileChannels instead of IdcDm, and
+ * the gaps scenarios have IdcDm download the gaps such a channel left between the blocks it read.
+ *
+ * The seed picks the content, the faults and the kill points, so a failing run can be
+ * reproduced by passing its seed again.
+ */
+class SimulatedScenarios {
+	private static final String FILENAME = "scenario.bin";
+	private static final int SIZE = 16 * 1024 * 1024;
+	private static final long BANDWIDTH = 2 * 1024 * 1024;
+	private static final int CONNECTIONS = 4;
+	// a bottleneck whose full buffer adds half a second of queuing delay, with enough
+	// connections to keep more than the buffer in flight
+	private static final long LINK_RATE = 2 * 1024 * 1024;
+	private static final long LINK_BUFFER = 1024 * 1024;
+	private static final int LINK_CONNECTIONS = 8;
+	// how much longer than an unlimited download a background download may take on an idle link
+	private static final double BACKGROUND_SLOWDOWN = 1.5;
+	// cache sizes of the RemoteFileChannels, from less than the readahead to more
+	private static final int[] CACHE_BLOCKS = { 1, 2, 4, 16 };
+	private static final int RANDOM_READS = 50;
+	// a persistent RemoteFileChannel reads every this many blocks, leaving gaps between them
+	private static final int READ_STRIDE = 3;
+	// the blocks it read, one after the other
+	private static final String READ_FILENAME = "blocks.bin";
+	// reruns allowed after failed or killed runs
+	private static final int MAX_RUNS = 50;
+	private static final long RUN_TIMEOUT = 120;
+	private static final int KILLED = -1;
+
+	private final long seed;
+	private final SplittableRandom random;
+	private Path dir;
+	// System.nanoTime() when the last IdcDm run exited
+	private long exited;
+
+	SimulatedScenarios(long seed) {
+		this.seed = seed;
+		this.random = new SplittableRandom(seed);
+	}
+
+	/**
+	 * a clean download over connections capped at BANDWIDTH has to reach targetRate,
+	 * timed from its first request so that the JVM's start-up doesn't count
+	 */
+	private boolean throughput(boolean nio, long targetRate) throws Exception {
+		SimulatedServer server = start(SIZE);
+		server.setBandwidth(BANDWIDTH);
+		try {
+			if(runClient(server, nio, CONNECTIONS, null, Long.MAX_VALUE) != 0) {
+				return fail("download failed");
+			}
+			long rate = (long)(SIZE / transferTime(server));
+			System.err.println("\t" + rate + " Bps, target " + targetRate + " Bps");
+			if(rate < targetRate) {
+				return fail("too slow");
+			}
+			return checkContent(server);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * IdcDm is killed at a random point of the download, the next run has to resume it
+	 */
+	private boolean killAndResume(boolean nio) throws Exception {
+		SimulatedServer server = start(SIZE);
+		server.setBandwidth(BANDWIDTH);
+		try {
+			long killAt = (long)(SIZE * (0.1 + 0.8 * this.random.nextDouble()));
+			System.err.println("\tkilling after " + killAt + " bytes");
+			if(runClient(server, nio, CONNECTIONS, null, killAt) != KILLED) {
+				return fail("finished before the kill point");
+			}
+			if(!Files.exists(this.dir.resolve(FILENAME + ".metadata"))) {
+				return fail("no metadata to resume from");
+			}
+			return runUntilDone(server, nio) && checkContent(server);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * the server cuts responses and answers errors, reruns have to finish the download
+	 */
+	private boolean faults(boolean nio) throws Exception {
+		SimulatedServer server = start(SIZE);
+		server.setResetRate(0.05);
+		server.setErrorRate(0.05, 503);
+		try {
+			return runUntilDone(server, nio) && checkContent(server);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A download without a limit fills the buffer of the server's bottleneck link,
+	 * the same download in background mode has to keep its queuing delay well below that
+	 * while still using the link, which nothing else uses, nearly as well.
+	 */
+	private boolean background() throws Exception {
+		long fullDelay = LINK_BUFFER * 1000 / LINK_RATE;
+		double[] delays = new double[2];
+		double[] times = new double[2];
+		String[] limits = { null, "background" };
+		for(int i = 0; i < limits.length; i++) {
+			SimulatedServer server = start(SIZE);
+			server.setLink(LINK_RATE, LINK_BUFFER);
+			try {
+				if(runClient(server, true, LINK_CONNECTIONS, limits[i], Long.MAX_VALUE) != 0) {
+					return fail("download failed");
+				}
+				if(!checkContent(server)) {
+					return false;
+				}
+				delays[i] = server.getMeanQueuingDelay();
+				times[i] = transferTime(server);
+			} finally {
+				server.stop();
+			}
+			if(i == 0) {
+				delete(this.dir);
+			}
+		}
+
+		System.err.printf("\tmean queuing delay %.0fms without a limit, %.0fms in background mode, full buffer %dms\n",
+				delays[0], delays[1], fullDelay);
+		System.err.printf("\t%.1fs without a limit, %.1fs in background mode\n", times[0], times[1]);
+		if(delays[0] < fullDelay / 2) {
+			return fail("the download without a limit didn't fill the link's buffer");
+		}
+		if(delays[1] > fullDelay / 2) {
+			return fail("background mode didn't back off");
+		}
+		if(times[1] > BACKGROUND_SLOWDOWN * times[0]) {
+			return fail("background mode left the idle link unused");
+		}
+		return true;
+	}
+
+	/**
+	 * Random and sequential reads through RemoteFileChannels have to match the server's content,
+	 * and a sequential read has to fetch each block once whatever the size of the cache.
+	 * A persistent channel opened again has to read the blocks it fetched before from the disk.
+	 */
+	private boolean remoteFile() throws Exception {
+		SimulatedServer server = start(SIZE / 2);
+		byte[] content = server.getContent();
+		try {
+			for(int cacheBlocks : CACHE_BLOCKS) {
+				long sent = server.getBytesSent();
+				try(RemoteFileChannel channel = new RemoteFileChannel(server.getUrl(), cacheBlocks)) {
+					if(!Arrays.equals(read(channel, 0, content.length), content)) {
+						return fail("sequential read differs from the server's content");
+					}
+					long fetched = server.getBytesSent() - sent;
+					System.err.println("\tcache of " + cacheBlocks + " blocks: fetched " + fetched
+							+ " bytes to read " + content.length);
+					if(fetched != content.length) {
+						return fail("sequential read fetched blocks more than once");
+					}
+				}
+			}
+
+			// after the sequential reads, since a closed channel's fetches ahead of random reads may still be sending
+			for(int cacheBlocks : CACHE_BLOCKS) {
+				try(RemoteFileChannel channel = new RemoteFileChannel(server.getUrl(), cacheBlocks)) {
+					for(int i = 0; i < RANDOM_READS; i++) {
+						int position = this.random.nextInt(content.length);
+						int length = Math.min(1 + this.random.nextInt(2 * RemoteFileChannel.BLOCK_SIZE),
+								content.length - position);
+						if(!Arrays.equals(read(channel, position, length),
+								Arrays.copyOfRange(content, position, position + length))) {
+							return fail("read of " + length + " bytes at " + position + " differs from the server's content");
+						}
+					}
+				}
+			}
+
+			// the second run has every block it reads on the disk already
+			for(int run = 0; run < 2; run++) {
+				long sent = server.getBytesSent();
+				if(runReader(server) != 0) {
+					return fail("reading through a persistent channel failed");
+				}
+				if(!Arrays.equals(Files.readAllBytes(this.dir.resolve(READ_FILENAME)), readBlocks(content))) {
+					return fail("blocks read through a persistent channel differ from the server's content");
+				}
+				if(run == 1 && server.getBytesSent() != sent) {
+					return fail("persistent channel opened again fetched " + (server.getBytesSent() - sent)
+							+ " bytes it had on disk");
+				}
+			}
+			return true;
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * A persistent RemoteFileChannel reads every READ_STRIDE-th block, then IdcDm downloads the
+	 * scattered gaps it left. They're small, so IdcDm asks for several of them in each multi-range
+	 * request, or one at a time once a server without multi-range support answered with the whole file.
+	 */
+	private boolean gaps(boolean multiRange) throws Exception {
+		SimulatedServer server = start(SIZE / 2);
+		server.setMultiRange(multiRange);
+		try {
+			if(runReader(server) != 0) {
+				return fail("reading through a persistent channel failed");
+			}
+			if(!runUntilDone(server, false) || !checkContent(server)) {
+				return false;
+			}
+			System.err.println("\t" + server.getMultipartResponses() + " multipart responses");
+			if(multiRange && server.getMultipartResponses() == 0) {
+				return fail("the gaps weren't downloaded in multi-range requests");
+			}
+			return true;
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * a server without Range support can still serve a file which fits in the first request
+	 */
+	private boolean ignoreRange() throws Exception {
+		SimulatedServer server = start(DownloadableMetadata.FIRST_RANGE_SIZE / 2);
+		server.setIgnoreRange(true);
+		try {
+			if(runClient(server, false, CONNECTIONS, null, Long.MAX_VALUE) != 0) {
+				return fail("download failed");
+			}
+			return checkContent(server);
+		} finally {
+			server.stop();
+		}
+	}
+
+	private SimulatedServer start(int size) throws IOException {
+		this.dir = Files.createTempDirectory("scenario");
+		SimulatedServer server = new SimulatedServer(0, FILENAME, size, this.seed);
+		server.start(16);
+		return server;
+	}
+
+	private boolean runUntilDone(SimulatedServer server, boolean nio) throws Exception {
+		for(int run = 0; run < MAX_RUNS; run++) {
+			if(runClient(server, nio, CONNECTIONS, null, Long.MAX_VALUE) == 0) {
+				System.err.println("\tdone after " + (run + 1) + " runs");
+				return true;
+			}
+		}
+		return fail("not done after " + MAX_RUNS + " runs");
+	}
+
+	/**
+	 * Runs IdcDm once in the scenario's directory, its output goes to client.log.
+	 * @param limit - MAX-DOWNLOAD-LIMIT argument, null for none
+	 * @param killAt - kill IdcDm once the server sent this many bytes
+	 * @return IdcDm's exit code, or KILLED
+	 */
+	private int runClient(SimulatedServer server, boolean nio, int connections, String limit, long killAt)
+			throws IOException, InterruptedException {
+
+		ArrayList<String> args = new ArrayList<String>();
+		if(nio) {
+			args.add("-DIdcDm.engine=nio");
+		}
+		args.add("IdcDm");
+		args.add(server.getUrl());
+		args.add(Integer.toString(connections));
+		if(limit != null) {
+			args.add(limit);
+		}
+		return run(server, args, killAt);
+	}
+
+	/**
+	 * Runs the ChannelReader once in the scenario's directory, its output goes to client.log.
+	 * @return its exit code
+	 */
+	private int runReader(SimulatedServer server) throws IOException, InterruptedException {
+		ArrayList<String> args = new ArrayList<String>();
+		args.add(ChannelReader.class.getName());
+		args.add(server.getUrl());
+		args.add(Integer.toString(READ_STRIDE));
+		return run(server, args, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs a class of ours in another JVM in the scenario's directory, its output goes to client.log.
+	 * @param args - the JVM's arguments after the class path
+	 * @param killAt - kill it once the server sent this many bytes
+	 * @return its exit code, or KILLED
+	 */
+	private int run(SimulatedServer server, ArrayList<String> args, long killAt)
+			throws IOException, InterruptedException {
+
+		ArrayList<String> command = new ArrayList<String>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-cp");
+		command.add(classPath());
+		command.addAll(args);
+
+		Process process = new ProcessBuilder(command)
+				.directory(this.dir.toFile())
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.appendTo(this.dir.resolve("client.log").toFile()))
+				.start();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RUN_TIMEOUT);
+		while(!process.waitFor(1, TimeUnit.MILLISECONDS)) {
+			if(server.getBytesSent() >= killAt) {
+				process.destroyForcibly().waitFor();
+				return KILLED;
+			}
+			if(System.nanoTime() > deadline) {
+				process.destroyForcibly().waitFor();
+				System.err.println("\t" + args + " timed out");
+				return KILLED;
+			}
+		}
+		this.exited = System.nanoTime();
+		return process.exitValue();
+	}
+
+	/**
+	 * @return seconds from the server's first request until the last IdcDm run exited.
+	 * The server may write a response long before a rate limited client reads it,
+	 * so the time the server wrote its last byte would be too early.
+	 */
+	private double transferTime(SimulatedServer server) {
+		return (this.exited - server.getFirstRequestTime()) / 1e9;
+	}
+
+	/**
+	 * reads length bytes at position from the channel
+	 */
+	private static byte[] read(RemoteFileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		channel.position(position);
+		while(buffer.hasRemaining() && channel.read(buffer) != -1) {
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @return the blocks the ChannelReader reads, one after the other
+	 */
+	private static byte[] readBlocks(byte[] content) {
+		ByteBuffer blocks = ByteBuffer.allocate(content.length);
+		for(int start = 0; start < content.length; start += READ_STRIDE * RemoteFileChannel.BLOCK_SIZE) {
+			blocks.put(content, start, Math.min(RemoteFileChannel.BLOCK_SIZE, content.length - start));
+		}
+		return Arrays.copyOf(blocks.array(), blocks.position());
+	}
+
+	private boolean checkContent(SimulatedServer server) throws IOException {
+		Path file = this.dir.resolve(FILENAME);
+		if(!Files.exists(file)) {
+			return fail("no file downloaded");
+		}
+		if(!Arrays.equals(Files.readAllBytes(file), server.getContent())) {
+			return fail("downloaded file differs from the server's content");
+		}
+		if(Files.exists(this.dir.resolve(FILENAME + ".metadata"))) {
+			return fail("metadata file left behind");
+		}
+		return true;
+	}
+
+	private boolean fail(String reason) {
+		System.err.println("\t" + reason + ", see " + this.dir.resolve("client.log"));
+		return false;
+	}
+
+	/**
+	 * the class path of this JVM with absolute paths, for IdcDm running in another directory
+	 */
+	private static String classPath() {
+		ArrayList<String> paths = new ArrayList<String>();
+		for(String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			paths.add(Paths.get(path).toAbsolutePath().toString());
+		}
+		return String.join(File.pathSeparator, paths);
+	}
+
+	private static void delete(Path dir) throws IOException {
+		File[] files = dir.toFile().listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		Files.deleteIfExists(dir);
+	}
+
+	/**
+	 * Runs all the scenarios, exits with 1 if any failed.
+	 *
+	 * @param args command-line arguments:
+	 * [SEED]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1) {
+			System.err.printf("usage:\n\tjava SimulatedScenarios [SEED]\n");
+			System.exit(1);
+		}
+
+		long seed = args.length == 1 ? Long.parseLong(args[0]) : 0;
+		SimulatedScenarios scenarios = new SimulatedScenarios(seed);
+		System.err.println("Running scenarios with seed " + seed);
+
+		String[] names = {
+				"throughput", "throughput (nio)",
+				"kill and resume", "kill and resume (nio)",
+				"resets and errors", "resets and errors (nio)",
+				"ignore range", "remote file", "gaps", "gaps without multi-range",
+				"background (nio)" };
+		int failed = 0;
+		for (String name : names) {
+			System.err.println(name);
+			boolean passed;
+			switch (name) {
+			case "throughput":
+				// the download loop fetches one range at a time
+				passed = scenarios.throughput(false, 3 * BANDWIDTH / 4);
+				break;
+			case "throughput (nio)":
+				// more than one connection's cap, which needs the connections to run in parallel
+				passed = scenarios.throughput(true, 2 * BANDWIDTH);
+				break;
+			case "kill and resume":
+				passed = scenarios.killAndResume(false);
+				break;
+			case "kill and resume (nio)":
+				passed = scenarios.killAndResume(true);
+				break;
+			case "resets and errors":
+				passed = scenarios.faults(false);
+				break;
+			case "resets and errors (nio)":
+				passed = scenarios.faults(true);
+				break;
+			case "ignore range":
+				passed = scenarios.ignoreRange();
+				break;
+			case "remote file":
+				passed = scenarios.remoteFile();
+				break;
+			case "gaps":
+				passed = scenarios.gaps(true);
+				break;
+			case "gaps without multi-range":
+				passed = scenarios.gaps(false);
+				break;
+			default:
+				passed = scenarios.background();
+				break;
+			}
+
+			System.err.println(passed ? "\tpassed" : "\tFAILED");
+			if (passed) {
+				delete(scenarios.dir);
+			} else {
+				failed++;
+			}
+		}
+
+		System.err.println(failed == 0 ? "All scenarios passed" : failed + " scenarios failed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Reads every STRIDE-th block of a file through a persistent RemoteFileChannel, which keeps them
+	 * in the working directory, and writes them one after the other to READ_FILENAME.
+	 *
+	 * @param args command-line arguments:
+	 * URL STRIDE
+	 */
+	static class ChannelReader {
+		public static void main(String[] args) throws IOException {
+			long stride = Long.parseLong(args[1]) * RemoteFileChannel.BLOCK_SIZE;
+			try(RemoteFileChannel channel = new RemoteFileChannel(args[0], 1, null, true);
+					FileChannel out = FileChannel.open(Paths.get(READ_FILENAME), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for(long start = 0; start < channel.size(); start += stride) {
+					int length = (int)Math.min(RemoteFileChannel.BLOCK_SIZE, channel.size() - start);
+					out.write(ByteBuffer.wrap(read(channel, start, length)));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,447 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local Range-capable HTTP server that simulates a slow, lossy or flaky link.
+ *
+ * It serves a single file of generated bytes at /<filename>. The content comes from a
+ * Random seeded with the seed, so the downloaded file can be compared byte for byte with
+ * getContent() or generate(size, seed).
+ *
+ * The faults of a request are drawn from a SplittableRandom seeded with the seed, the request's Range
+ * header and how many times that Range was requested before. A run gets the same faults no
+ * matter in which order parallel connections send their requests, and a retried range
+ * doesn't hit the same fault forever.
+ *
+ * Faults that can be configured:
+ * - bandwidth: bytes per second for each connection, 0 for unlimited
+ * - latency: constant delay before each response is sent
+ * - link: a bottleneck shared by all connections, with a drop-tail buffer in front of it.
+ *   Bytes sent faster than the link's rate fill the buffer, writers block while it's full,
+ *   and each response waits for what is queued before it, so the queuing delay grows
+ *   with how hard the clients push (see getMeanQueuingDelay())
+ * - reset rate: chance that a response is cut in the middle of its body
+ * - error rate: chance that a request is answered with errorCode instead of data
+ * - ignore range: answer every request with 200 and the whole file
+ * - no multi-range: answer requests for several ranges with 200 and the whole file
+ *
+ * Everything runs on localhost, no network access is needed.
+ */
+class SimulatedServer {
+	private static final int WRITE_SIZE = 4096;
+	private static final String BOUNDARY = "SIMULATED_BOUNDARY";
+
+	private final HttpServer server;
+	private final String filename;
+	private final byte[] content;
+	private final long seed;
+	private final ConcurrentHashMap<String, Integer> attempts;
+	private final AtomicLong bytesSent;
+	private final AtomicLong firstRequest;
+	private final AtomicInteger multipartResponses;
+	private ExecutorService threads;
+
+	private long bytesPerSecond;
+	private long latencyMillis;
+	private double resetRate;
+	private double errorRate;
+	private int errorCode;
+	private boolean ignoreRange;
+	private boolean multiRange;
+	private Link link;
+
+	SimulatedServer(int port, String filename, int size, long seed) throws IOException {
+		this.filename = filename;
+		this.seed = seed;
+		this.content = generate(size, seed);
+		this.attempts = new ConcurrentHashMap<String, Integer>();
+		this.bytesSent = new AtomicLong();
+		this.firstRequest = new AtomicLong();
+		this.multipartResponses = new AtomicInteger();
+
+		this.bytesPerSecond = Long.MAX_VALUE;
+		this.latencyMillis = 0;
+		this.resetRate = 0;
+		this.errorRate = 0;
+		this.errorCode = 503;
+		this.ignoreRange = false;
+		this.multiRange = true;
+		this.link = null;
+
+		this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		this.server.createContext("/" + filename, this::handle);
+	}
+
+	/**
+	 * @param bytesPerSecond - per connection, 0 for unlimited
+	 */
+	void setBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = (bytesPerSecond <= 0) ? Long.MAX_VALUE : bytesPerSecond;
+	}
+
+	void setLatency(long millis) {
+		this.latencyMillis = millis;
+	}
+
+	void setResetRate(double resetRate) {
+		this.resetRate = resetRate;
+	}
+
+	void setErrorRate(double errorRate, int errorCode) {
+		this.errorRate = errorRate;
+		this.errorCode = errorCode;
+	}
+
+	/**
+	 * @param bytesPerSecond - rate of the shared bottleneck
+	 * @param bufferBytes - bytes queued in front of it at most
+	 */
+	void setLink(long bytesPerSecond, long bufferBytes) {
+		this.link = new Link(bytesPerSecond, bufferBytes);
+	}
+
+	/**
+	 * @return average milliseconds responses waited in the link's queue, 0 without a link
+	 */
+	double getMeanQueuingDelay() {
+		return (this.link == null) ? 0 : this.link.getMeanDelay();
+	}
+
+	void setIgnoreRange(boolean ignoreRange) {
+		this.ignoreRange = ignoreRange;
+	}
+
+	void setMultiRange(boolean multiRange) {
+		this.multiRange = multiRange;
+	}
+
+	byte[] getContent() {
+		return this.content;
+	}
+
+	/**
+	 * the content a server of this size and seed serves
+	 */
+	static byte[] generate(int size, long seed) {
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * @return number of body bytes written to clients so far
+	 */
+	long getBytesSent() {
+		return this.bytesSent.get();
+	}
+
+	/**
+	 * @return number of multi-range requests answered with a multipart/byteranges body so far
+	 */
+	int getMultipartResponses() {
+		return this.multipartResponses.get();
+	}
+
+	/**
+	 * @return System.nanoTime() of the first request, which comes after the client's start-up,
+	 * 0 before any request
+	 */
+	long getFirstRequestTime() {
+		return this.firstRequest.get();
+	}
+
+	String getUrl() {
+		return "http://localhost:" + this.server.getAddress().getPort() + "/" + this.filename;
+	}
+
+	void start(int numThreads) {
+		this.threads = Executors.newFixedThreadPool(numThreads);
+		this.server.setExecutor(this.threads);
+		this.server.start();
+	}
+
+	void stop() {
+		this.server.stop(0);
+		if(this.threads != null) {
+			this.threads.shutdownNow();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+
+		this.firstRequest.compareAndSet(0, System.nanoTime());
+
+		// draw all of this request's faults at once so that runs are reproducible
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		String key = (range == null) ? "" : range;
+		int attempt = this.attempts.merge(key, 1, Integer::sum);
+		SplittableRandom random = new SplittableRandom((this.seed * 31 + key.hashCode()) * 31 + attempt);
+		boolean error = random.nextDouble() < this.errorRate;
+		boolean reset = random.nextDouble() < this.resetRate;
+		double resetPoint = random.nextDouble();
+
+		try {
+			sleep(this.latencyMillis);
+
+			// the response is queued behind what the link hasn't delivered yet
+			if(this.link != null) {
+				long wait = this.link.queuingDelay();
+				Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+			}
+
+			if(error) {
+				exchange.sendResponseHeaders(this.errorCode, -1);
+				return;
+			}
+
+			// the body is length bytes of source starting at offset
+			byte[] source = this.content;
+			int offset = 0;
+			int length = this.content.length;
+			int code = 200;
+
+			// a malformed Range header is ignored and the whole file is sent
+			ArrayList<int[]> parts = range != null && !this.ignoreRange ? parseRange(range) : null;
+			if(parts != null) {
+				if(parts.isEmpty()) {
+					exchange.getResponseHeaders().set("Content-Range", "bytes */" + this.content.length);
+					exchange.sendResponseHeaders(416, -1);
+					return;
+				}
+
+				if(parts.size() == 1) {
+					int[] part = parts.get(0);
+					exchange.getResponseHeaders().set("Content-Range",
+							"bytes " + part[0] + "-" + part[1] + "/" + this.content.length);
+					offset = part[0];
+					length = part[1] - part[0] + 1;
+					code = 206;
+				} else if(this.multiRange) {
+					exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + BOUNDARY);
+					source = multipart(parts);
+					length = source.length;
+					code = 206;
+					this.multipartResponses.incrementAndGet();
+				}
+				// otherwise answer a multi-range request with the whole file, like some servers do
+			}
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+			exchange.sendResponseHeaders(code, length);
+
+			// a reset cuts the body somewhere in its middle
+			long limit = reset ? (long)(length * resetPoint) : length;
+
+			OutputStream out = exchange.getResponseBody();
+			long sent = 0;
+			long began = System.nanoTime();
+			while(sent < limit) {
+				int size = (int)Math.min(WRITE_SIZE, limit - sent);
+				if(this.link != null) {
+					this.link.enqueue(size);
+				}
+				out.write(source, offset, size);
+				out.flush();
+				offset += size;
+				sent += size;
+				this.bytesSent.addAndGet(size);
+				throttle(sent, began);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// the client hung up, nothing to do
+		} finally {
+			// closing before the whole body was written drops the connection
+			exchange.close();
+		}
+	}
+
+	/**
+	 * parses "bytes=a-b,c-,-n,..." into the satisfiable {start, end} parts
+	 * @return the parts, or null if the header is malformed and should be ignored
+	 */
+	private ArrayList<int[]> parseRange(String range) {
+		if(!range.startsWith("bytes=")) {
+			return null;
+		}
+		ArrayList<int[]> parts = new ArrayList<int[]>();
+		for(String spec : range.substring("bytes=".length()).split(",")) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if(dash == -1) {
+				return null;
+			}
+			long start;
+			long end = this.content.length - 1;
+			try {
+				if(dash == 0) {
+					// a suffix range is the last n bytes of the file
+					start = Math.max(0, this.content.length - Long.parseLong(spec.substring(1)));
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					if(dash < spec.length() - 1) {
+						long last = Long.parseLong(spec.substring(dash + 1));
+						if(last < start) {
+							return null;
+						}
+						end = Math.min(last, end);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if(start < 0) {
+				return null;
+			}
+			if(start <= end) {
+				parts.add(new int[] {(int)start, (int)end});
+			}
+		}
+		return parts;
+	}
+
+	/**
+	 * builds a multipart/byteranges body of the parts
+	 */
+	private byte[] multipart(ArrayList<int[]> parts) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for(int[] part : parts) {
+			String header = "\r\n--" + BOUNDARY + "\r\n"
+					+ "Content-Type: application/octet-stream\r\n"
+					+ "Content-Range: bytes " + part[0] + "-" + part[1] + "/" + this.content.length + "\r\n"
+					+ "\r\n";
+			body.write(header.getBytes(StandardCharsets.US_ASCII));
+			body.write(this.content, part[0], part[1] - part[0] + 1);
+		}
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		return body.toByteArray();
+	}
+
+	/**
+	 * sleeps until sending sent bytes since began fits in the connection's bandwidth
+	 */
+	private void throttle(long sent, long began) throws InterruptedException {
+		if(this.bytesPerSecond == Long.MAX_VALUE) {
+			return;
+		}
+		long due = began + (long)(sent * 1e9 / this.bytesPerSecond);
+		long wait = due - System.nanoTime();
+		if(wait > 0) {
+			Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+		}
+	}
+
+	/**
+	 * A bottleneck link drained at bytesPerSecond with a buffer of bufferBytes in front of it
+	 */
+	private static class Link {
+		private final long bytesPerSecond;
+		private final long bufferBytes;
+		private double queued;
+		private long lastDrain;
+		private long delays;
+		private long numDelays;
+
+		Link(long bytesPerSecond, long bufferBytes) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.bufferBytes = bufferBytes;
+			this.queued = 0;
+			this.lastDrain = System.nanoTime();
+		}
+
+		/**
+		 * @return nanoseconds until what is queued now has gone through the link
+		 */
+		synchronized long queuingDelay() {
+			drain();
+			long delay = (long)(this.queued * 1e9 / this.bytesPerSecond);
+			this.delays += delay;
+			this.numDelays++;
+			return delay;
+		}
+
+		/**
+		 * queues bytes on the link, blocks while the buffer has no room for them
+		 */
+		synchronized void enqueue(int bytes) throws InterruptedException {
+			drain();
+			while(this.queued + bytes > this.bufferBytes) {
+				long wait = Math.max(1, (long)((this.queued + bytes - this.bufferBytes) * 1e9 / this.bytesPerSecond));
+				this.wait(wait / 1_000_000, (int)(wait % 1_000_000));
+				drain();
+			}
+			this.queued += bytes;
+		}
+
+		synchronized double getMeanDelay() {
+			return (this.numDelays == 0) ? 0 : this.delays / 1e6 / this.numDelays;
+		}
+
+		private void drain() {
+			long now = System.nanoTime();
+			this.queued = Math.max(0, this.queued - (now - this.lastDrain) * this.bytesPerSecond / 1e9);
+			this.lastDrain = now;
+		}
+	}
+
+	private static void sleep(long millis) throws InterruptedException {
+		if(millis > 0) {
+			Thread.sleep(millis);
+		}
+	}
+
+	/**
+	 * Runs the server until killed. The served content is also written to FILENAME.expected
+	 * in the current directory, to compare a download against.
+	 *
+	 * @param args command-line arguments:
+	 * PORT FILENAME SIZE [SEED] [BANDWIDTH] [LATENCY-MS] [RESET-RATE] [ERROR-RATE] [ignore-range] [no-multi-range]
+	 * BANDWIDTH is per connection in bytes per second, 0 for unlimited
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3 || args.length > 10) {
+			System.err.printf("usage:\n\tjava SimulatedServer PORT FILENAME SIZE [SEED] [BANDWIDTH] [LATENCY-MS] [RESET-RATE] [ERROR-RATE] [ignore-range] [no-multi-range]\n");
+			System.exit(1);
+		}
+
+		long seed = args.length >= 4 ? Long.parseLong(args[3]) : 0;
+		SimulatedServer server = new SimulatedServer(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]), seed);
+
+		if (args.length >= 5)
+			server.setBandwidth(Long.parseLong(args[4]));
+		if (args.length >= 6)
+			server.setLatency(Long.parseLong(args[5]));
+		if (args.length >= 7)
+			server.setResetRate(Double.parseDouble(args[6]));
+		if (args.length >= 8)
+			server.setErrorRate(Double.parseDouble(args[7]), 503);
+		for (int i = 8; i < args.length; i++) {
+			if (args[i].equals("ignore-range"))
+				server.setIgnoreRange(true);
+			else if (args[i].equals("no-multi-range"))
+				server.setMultiRange(false);
+		}
+
+		Files.write(Paths.get(args[1] + ".expected"), server.getContent());
+
+		server.start(16);
+		System.err.println("Serving " + server.getUrl());
+	}
+}
@@ -5,10 +5,14 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * This thread-safe bucket should support the following methods:
  *
- * - take(n): remove n tokens from the bucket (blocks until n tokens are available and taken)
+ * - take(n): remove n tokens from the bucket (blocks until tokens are available, then takes n)
+ * - tryTake(n): remove up to n tokens from the bucket without blocking
+ * - charge(n): remove n tokens from the bucket without blocking, for bytes which were read already
  * - set(n): set the bucket to contain n tokens (to allow "hard" rate limiting)
  * - add(n): add n tokens to the bucket (to allow "soft" rate limiting)
  *
+ * A take of more tokens than the bucket holds leaves it in debt, which the next refills pay back
+ * before anyone can take again, so takes larger than a refill don't starve and the rate still holds.
  */
 class TokenBucket {
 
@@ -29,26 +33,47 @@ class TokenBucket {
 
     synchronized void take(long tokens) throws InterruptedException {
     	
-        while(this.numTokens < tokens) {
+        while(this.numTokens <= 0) {
         	
-        	// wait for enough tokens to be available
+        	// wait for the debt to be paid and tokens to be available
         	this.wait();
         }
         
-        // if we reach here, then there are enough tokens to be taken
+        // if we reach here, then there are tokens to be taken, the rest is taken in debt
         this.numTokens -= tokens;
     }
 
+    /**
+     * takes as many of the requested tokens as are available, for callers that can't block
+     * @param tokens - max number of tokens to take
+     * @return number of tokens taken, possibly 0
+     */
+    synchronized long tryTake(long tokens) {
+    	
+    	long taken = Math.min(tokens, Math.max(this.numTokens, 0));
+    	this.numTokens -= taken;
+    	return taken;
+    }
+    
+    /**
+     * takes tokens for bytes which were read without asking first, going into debt if the bucket holds fewer
+     * @param tokens
+     */
+    synchronized void charge(long tokens) {
+    	
+    	this.numTokens -= tokens;
+    }
     
     synchronized void add(long tokens) {
     	
     	this.numTokens += tokens;
-    	this.notify();
+    	this.notifyAll();
     }
 
     synchronized void set(long tokens) {
     	
-    	this.numTokens = tokens;
-    	this.notify();
+    	// a debt is kept, otherwise the bytes taken in debt would go unlimited
+    	this.numTokens = Math.min(this.numTokens, 0) + tokens;
+    	this.notifyAll();
     }
 }